@@ -0,0 +1,139 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.QuotaException;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettingsParser;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.clouds.azure.util.AzureSubscription;
+import org.jetbrains.annotations.NotNull;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Claims instances of an image from concurrent callers and releases them right away, which measures picking a stopped
+ * instance, reserving a running slot and the status transition. Azure is not called, starts complete immediately.
+ * The number of callers is set with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class AzureImageStartBenchmark {
+  private static final String SUBSCRIPTION_ID = "benchmark";
+
+  @Param({"16", "1000"})
+  public int instances;
+
+  private AzureCloudImage image;
+  private AzureManagementClientRegistry registry;
+  private AzureOperationTracker tracker;
+  private AzureRoleOperationBatcher batcher;
+  private AzureLifecycleExecutor lifecycleExecutor;
+  private ScheduledThreadPoolExecutor executor;
+
+  @Setup
+  public void setUp() throws Exception {
+    final StringBuilder vmNames = new StringBuilder();
+    for (int i = 0; i < instances; i++) {
+      vmNames.append("vm-").append(i).append("\n");
+    }
+    final AzureImageSettings settings = new AzureImageSettingsParser().parse(vmNames.toString()).get(0);
+    final AzurePublishSettings publishSettings = new AzurePublishSettings("AzureServiceManagementAPI", "https://management.core.windows.net",
+            null, Collections.<AzureSubscription>emptyList());
+    registry = new AzureManagementClientRegistry();
+    tracker = new AzureOperationTracker(registry, publishSettings, SUBSCRIPTION_ID);
+    executor = new ScheduledThreadPoolExecutor(1);
+    batcher = new AzureRoleOperationBatcher(registry, publishSettings, SUBSCRIPTION_ID, tracker, executor, 0);
+    lifecycleExecutor = new InlineLifecycleExecutor();
+    final AzureRoleLocationIndex locationIndex = new AzureRoleLocationIndex(registry, publishSettings, SUBSCRIPTION_ID) {
+      @Override
+      public void build(@NotNull final Collection<String> roleNames) {
+        // the image resolves VM locations on creation, which is not part of the benchmark
+      }
+    };
+
+    image = new AzureCloudImage(settings, SUBSCRIPTION_ID, publishSettings, registry, locationIndex, new AzureAgentIndex(), batcher, lifecycleExecutor, executor, null) {
+      @Override
+      protected AzureCloudInstance createInstance(final String instanceId) {
+        return new AzureCloudInstance(instanceId, getSubscriptionId(), getPublishSettings(), this, getClientRegistry(), getLocationIndex(),
+                getRoleOperationBatcher(), getLifecycleExecutor()) {
+          @Override
+          protected void doStart(@NotNull final AzureOperationCallback callback) {
+            callback.operationSucceeded();
+          }
+        };
+      }
+    };
+  }
+
+  @TearDown
+  public void tearDown() {
+    image.dispose();
+    batcher.dispose(0);
+    tracker.dispose();
+    lifecycleExecutor.shutdown(0);
+    executor.shutdownNow();
+    registry.dispose();
+  }
+
+  @Benchmark
+  public AzureCloudInstance startNewInstance(final UserData data) throws QuotaException {
+    final AzureCloudInstance instance = image.startNewInstance(data.userData);
+    instance.settleTransition(InstanceStatus.STARTING, InstanceStatus.STOPPED, false);
+    return instance;
+  }
+
+  /**
+   * User data of one caller, the instance id is added to it on every start.
+   */
+  @State(Scope.Thread)
+  public static class UserData {
+    private final CloudInstanceUserData userData = new CloudInstanceUserData("agent", "token", "http://localhost:8111", null, "profile", "benchmark",
+            new HashMap<String, String>());
+  }
+
+  /**
+   * Runs operations on the calling thread as soon as they are submitted.
+   */
+  private static class InlineLifecycleExecutor extends AzureLifecycleExecutor {
+    private static final Runnable DONE = new Runnable() {
+      public void run() {
+      }
+    };
+
+    private InlineLifecycleExecutor() {
+      super(1);
+    }
+
+    @Override
+    public void submit(@NotNull final String key, @NotNull final String description, @NotNull final AsyncOperation operation) {
+      operation.start(DONE);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.management.compute.models.HostedServiceGetDetailedResponse;
+import com.microsoft.windowsazure.management.compute.models.Role;
+import com.microsoft.windowsazure.management.compute.models.RoleInstance;
+import com.microsoft.windowsazure.management.compute.models.VirtualMachineRoleType;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matches the VMs of a profile against a synthetic listing of large hosted services, as done when resolving
+ * VM locations and on every status sweep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AzureRoleMatchingBenchmark {
+  private static final String[] ROLE_STATUSES = {"ReadyRole", "StoppedVM", "StoppedDeallocated", "StartingVM", "StoppingVM"};
+
+  @Param({"10", "100"})
+  public int services;
+
+  @Param({"50", "500"})
+  public int rolesPerService;
+
+  /**
+   * Share of the VMs in the listing that belong to the profile.
+   */
+  @Param({"0.1"})
+  public double profileShare;
+
+  private final Map<String, HostedServiceGetDetailedResponse> listing = new LinkedHashMap<String, HostedServiceGetDetailedResponse>();
+  private final Set<String> roleKeys = new HashSet<String>();
+
+  @Setup
+  public void setUp() {
+    final Random random = new Random(42);
+    for (int s = 0; s < services; s++) {
+      final ArrayList<Role> roles = new ArrayList<Role>();
+      final ArrayList<RoleInstance> roleInstances = new ArrayList<RoleInstance>();
+      for (int r = 0; r < rolesPerService; r++) {
+        final String roleName = "Service" + s + "-VM" + r;
+        final Role role = new Role();
+        role.setRoleName(roleName);
+        role.setRoleType(VirtualMachineRoleType.PersistentVMRole.toString());
+        roles.add(role);
+
+        final RoleInstance instance = new RoleInstance();
+        instance.setRoleName(roleName);
+        instance.setInstanceName(roleName);
+        instance.setInstanceStatus(ROLE_STATUSES[random.nextInt(ROLE_STATUSES.length)]);
+        roleInstances.add(instance);
+
+        if (random.nextDouble() < profileShare) {
+          roleKeys.add(AzureRoleLocationIndex.key(roleName));
+        }
+      }
+
+      final HostedServiceGetDetailedResponse.Deployment deployment = new HostedServiceGetDetailedResponse.Deployment();
+      deployment.setName("service" + s + "-production");
+      deployment.setRoles(roles);
+      deployment.setRoleInstances(roleInstances);
+
+      final HostedServiceGetDetailedResponse details = new HostedServiceGetDetailedResponse();
+      details.setDeployments(new ArrayList<HostedServiceGetDetailedResponse.Deployment>(Collections.singletonList(deployment)));
+      listing.put("service" + s, details);
+    }
+  }
+
+  @Benchmark
+  public Map<String, AzureRoleLocation> collectLocations() {
+    final Map<String, AzureRoleLocation> result = new HashMap<String, AzureRoleLocation>();
+    for (Map.Entry<String, HostedServiceGetDetailedResponse> details : listing.entrySet()) {
+      AzureRoleLocationIndex.collectLocations(details.getKey(), details.getValue(), roleKeys, result);
+    }
+    return result;
+  }
+
+  @Benchmark
+  public void collectStatuses(final Blackhole blackhole) {
+    final Map<String, AzureRoleLocation> locations = collectLocations();
+    for (HostedServiceGetDetailedResponse details : listing.values()) {
+      for (HostedServiceGetDetailedResponse.Deployment deployment : details.getDeployments()) {
+        for (RoleInstance roleInstance : deployment.getRoleInstances()) {
+          if (locations.containsKey(AzureRoleLocationIndex.key(roleInstance.getRoleName()))) {
+            final InstanceStatus status = AzureStatusPoller.toInstanceStatus(roleInstance.getInstanceStatus());
+            blackhole.consume(status);
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import org.openjdk.jmh.annotations.*;
+import util.AzurePublishSettingsFixture;
+
+import java.util.concurrent.TimeUnit;
+
+/* Parses publish settings with several profiles where the requested subscription is the last one of the last profile,
+ * the key store of the management certificate is cached after the first parse
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AzurePublishSettingsParserBenchmark {
+  @Param({"1", "5"})
+  public int profiles;
+
+  @Param({"1", "200"})
+  public int subscriptionsPerProfile;
+
+  private final AzurePublishSettingsParser parser = new AzurePublishSettingsParser();
+  private String xml;
+  private String subscriptionId;
+
+  @Setup
+  public void setUp() throws Exception {
+    String certificate = getCertificate();
+    StringBuilder builder = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<PublishData>\n");
+    for (int p = 0; p < profiles; p++) {
+      builder.append("  <PublishProfile PublishMethod=\"AzureServiceManagementAPI\" Url=\"https://management.core.windows.net\" ManagementCertificate=\"")
+              .append(certificate).append("\">\n");
+      for (int s = 0; s < subscriptionsPerProfile; s++) {
+        builder.append("    <Subscription Id=\"subscription-").append(p).append("-").append(s).append("\" Name=\"Subscription ").append(s).append("\" />\n");
+      }
+      builder.append("  </PublishProfile>\n");
+    }
+    xml = builder.append("</PublishData>").toString();
+    subscriptionId = "subscription-" + (profiles - 1) + "-" + (subscriptionsPerProfile - 1);
+    parser.parse(xml, subscriptionId);
+  }
+
+  @Benchmark
+  public AzurePublishSettings parse() throws Exception {
+    return parser.parse(xml, subscriptionId);
+  }
+
+  static String getCertificate() {
+    return AzurePublishSettingsFixture.PUBLISH_SETTINGS_XML.replaceAll("(?s).*ManagementCertificate=\"([^\"]*)\".*", "$1");
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.security.KeyStore;
+import java.util.concurrent.TimeUnit;
+
+/* Creates the PKCS#12 key store of a management certificate, once decoding the certificate and once from the cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyStoreUtilBenchmark {
+  private final KeyStoreUtil keyStoreUtil = new KeyStoreUtil();
+  private final String certificate = AzurePublishSettingsParserBenchmark.getCertificate();
+
+  @Benchmark
+  public KeyStore createKeyStorePKCS12(EmptyCache cache) throws Exception {
+    return keyStoreUtil.createKeyStorePKCS12(certificate, new ByteArrayOutputStream(), "");
+  }
+
+  @Benchmark
+  public KeyStore createKeyStorePKCS12Cached() throws Exception {
+    return keyStoreUtil.createKeyStorePKCS12(certificate, new ByteArrayOutputStream(), "");
+  }
+
+  @Benchmark
+  public KeyStore getKeyStorePKCS12Cached() throws Exception {
+    return keyStoreUtil.getKeyStorePKCS12(certificate);
+  }
+
+  /* Empties the key store cache before every call, the work is small compared to decoding a certificate
+   */
+  @State(Scope.Thread)
+  public static class EmptyCache {
+    @Setup(Level.Invocation)
+    public void clear() {
+      KeyStoreUtil.clearCache();
+    }
+  }
+}
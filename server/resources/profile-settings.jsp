@@ -22,6 +22,10 @@
 <c:set var="paramPublishSettings" value="<%=AzureCloudConstants.PARAM_NAME_PUBLISHSETTINGS%>"/>
 <c:set var="paramSubscription" value="<%=AzureCloudConstants.PARAM_NAME_SUBSCRIPTION%>"/>
 <c:set var="paramVmNames" value="<%=AzureCloudConstants.PARAM_NAME_VMNAMES%>"/>
+<c:set var="paramStatusPollInterval" value="<%=AzureCloudConstants.PARAM_NAME_STATUS_POLL_INTERVAL%>"/>
+<c:set var="paramLifecycleThreads" value="<%=AzureCloudConstants.PARAM_NAME_LIFECYCLE_THREADS%>"/>
+<c:set var="paramPredictiveWindow" value="<%=AzureCloudConstants.PARAM_NAME_PREDICTIVE_WINDOW%>"/>
+<c:set var="paramKeepRunning" value="<%=AzureCloudConstants.PARAM_NAME_KEEP_RUNNING%>"/>
 
 <script type="text/javascript">
   BS = BS || {};
@@ -49,6 +53,37 @@
   <th><label for="${paramVmNames}">Agent VM names: <l:star/></label></th>
   <td>
     <props:multilineProperty name="${paramVmNames}" className="longField" linkTitle="Agent VMs to run" cols="55" rows="5" expanded="${true}"/>
-    <span class="smallNote">List of agent VMs, each on a new line.</span>
+    <span class="smallNote">List of agent VMs, each on a new line. Start a new image with a line like <code>[linux] name=Linux agents; max=4; priority=10</code>.</span>
+  </td>
+</tr>
+
+<tr>
+  <th><label for="${paramStatusPollInterval}">Status refresh interval:</label></th>
+  <td><props:textProperty name="${paramStatusPollInterval}" className="longField"/>
+    <span id="error_${paramStatusPollInterval}" class="error"></span>
+    <span class="smallNote">How often (in seconds) the status of all agent VMs is refreshed from Microsoft Azure. Defaults to <%=AzureCloudConstants.DEFAULT_STATUS_POLL_INTERVAL%>.</span>
+  </td>
+</tr>
+
+<tr>
+  <th><label for="${paramLifecycleThreads}">Parallel VM operations:</label></th>
+  <td><props:textProperty name="${paramLifecycleThreads}" className="longField"/>
+    <span id="error_${paramLifecycleThreads}" class="error"></span>
+    <span class="smallNote">Maximum number of agent VMs started or stopped at the same time. Defaults to <%=AzureCloudConstants.DEFAULT_LIFECYCLE_THREADS%>.</span>
+  </td>
+</tr>
+
+<tr>
+  <th><label for="${paramPredictiveWindow}">Predictive start window:</label></th>
+  <td><props:textProperty name="${paramPredictiveWindow}" className="longField"/>
+    <span id="error_${paramPredictiveWindow}" class="error"></span>
+    <span class="smallNote">Minutes it takes an agent VM to boot. When set, agent VMs are started ahead of the builds the build queue history predicts within this time. Leave empty to start VMs on demand only.</span>
+  </td>
+</tr>
+
+<tr>
+  <th><label for="${paramKeepRunning}">Keep VMs running:</label></th>
+  <td><props:checkboxProperty name="${paramKeepRunning}"/>
+    <span class="smallNote">Leave agent VMs running when the server restarts or the profile is edited, the profile takes them over again with their agents. VMs created on demand are still deleted.</span>
   </td>
 </tr>
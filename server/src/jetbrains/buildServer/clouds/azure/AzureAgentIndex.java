@@ -0,0 +1,84 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.serverSide.AgentDescription;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the identity an agent reports to the instance it runs on, across all images of a cloud profile.
+ * An agent is recognized by the instance id parameter passed to it on start, by its name, or by its host name.
+ */
+public class AzureAgentIndex {
+  @NotNull
+  private static final String[] AGENT_NAME_PARAMETERS = {"agent.name", "system.agent.name"};
+  @NotNull
+  private static final String[] HOST_NAME_PARAMETERS = {"env.COMPUTERNAME", "env.HOSTNAME"};
+
+  @NotNull
+  private final Map<String, AzureCloudInstance> byInstanceId = new ConcurrentHashMap<String, AzureCloudInstance>();
+  @NotNull
+  private final Map<String, AzureCloudInstance> byVmName = new ConcurrentHashMap<String, AzureCloudInstance>();
+
+  public void register(@NotNull final AzureCloudInstance instance) {
+    byInstanceId.put(instance.getAgentInstanceId(), instance);
+    byVmName.put(key(instance.getInstanceId()), instance);
+  }
+
+  public void unregister(@NotNull final AzureCloudInstance instance) {
+    byInstanceId.remove(instance.getAgentInstanceId());
+    byVmName.remove(key(instance.getInstanceId()));
+  }
+
+  @Nullable
+  public AzureCloudInstance findInstance(@NotNull final AgentDescription agentDescription) {
+    final String instanceId = agentDescription.getConfigurationParameters().get(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID);
+    if (instanceId != null) {
+      final AzureCloudInstance instance = byInstanceId.get(instanceId);
+      if (instance != null) return instance;
+    }
+
+    final AzureCloudInstance byName = findByVmName(agentDescription.getConfigurationParameters(), AGENT_NAME_PARAMETERS[0]);
+    if (byName != null) return byName;
+    final AzureCloudInstance byDefinedName = findByVmName(agentDescription.getDefinedParameters(), AGENT_NAME_PARAMETERS[1]);
+    if (byDefinedName != null) return byDefinedName;
+
+    // Azure names the machine after the virtual machine unless the image says otherwise
+    for (String parameter : HOST_NAME_PARAMETERS) {
+      final AzureCloudInstance byHostName = findByVmName(agentDescription.getAvailableParameters(), parameter);
+      if (byHostName != null) return byHostName;
+    }
+    return null;
+  }
+
+  @Nullable
+  private AzureCloudInstance findByVmName(@Nullable final Map<String, String> parameters, @NotNull final String parameter) {
+    if (parameters == null) return null;
+    final String value = parameters.get(parameter);
+    return value == null ? null : byVmName.get(key(value));
+  }
+
+  @NotNull
+  private static String key(@NotNull final String name) {
+    return name.trim().toLowerCase(Locale.ENGLISH);
+  }
+}
@@ -16,32 +16,110 @@
 
 package jetbrains.buildServer.clouds.azure;
 
-import com.intellij.openapi.util.text.StringUtil;
 import jetbrains.buildServer.clouds.*;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettingsParser;
 import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
-import jetbrains.buildServer.clouds.azure.util.AzurePublishSettingsParser;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettingsCache;
 import jetbrains.buildServer.serverSide.AgentDescription;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.serverSide.SQueuedBuild;
+import jetbrains.buildServer.serverSide.SRunningBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.ExceptionUtil;
 import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.FileOutputStream;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AzureCloudClient extends BuildServerAdapter implements CloudClientEx {
   @NotNull
-  private final List<AzureCloudImage> cloudImages = new ArrayList<AzureCloudImage>();
+  private static final Logger LOG = Logger.getLogger(AzureCloudClient.class);
+  @NotNull
+  private static final AtomicInteger CLIENT_COUNTER = new AtomicInteger();
+
+  /**
+   * Replaced as a whole, never modified, so the scheduled tasks iterating it don't race with {@link #dispose}
+   */
+  @NotNull
+  private volatile Map<String, AzureCloudImage> cloudImages = Collections.emptyMap();
+  /**
+   * Images as seen by the scheduled tasks, follows {@link #cloudImages} when it is replaced
+   */
+  @NotNull
+  private final Collection<AzureCloudImage> images = new AbstractCollection<AzureCloudImage>() {
+    @Override
+    public Iterator<AzureCloudImage> iterator() {
+      return cloudImages.values().iterator();
+    }
+
+    @Override
+    public int size() {
+      return cloudImages.size();
+    }
+  };
   @NotNull
   private final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor(new NamedDeamonThreadFactory("azure-cloud-image"));
+  /**
+   * Runs the periodic work that calls Azure, the request governor may hold it back for a while when the subscription is throttled.
+   */
+  @NotNull
+  private final ScheduledExecutorService apiExecutor = Executors.newScheduledThreadPool(
+          AzureCloudConstants.API_THREADS, new NamedDeamonThreadFactory("azure-cloud-api"));
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzureAgentIndex agentIndex = new AzureAgentIndex();
+  @NotNull
+  private final AzureLifecycleExecutor lifecycleExecutor;
+  @NotNull
+  private final EventDispatcher<BuildServerListener> serverDispatcher;
   private final CloudClientParameters cloudClientParameters;
+  private final boolean keepRunning;
   @Nullable
   private CloudErrorInfo errorInfo;
-
-  public AzureCloudClient(CloudClientParameters params) {
+  @Nullable
+  private AzureStatusPoller statusPoller;
+  @Nullable
+  private AzureRoleOperationBatcher roleOperationBatcher;
+  @Nullable
+  private AzureOperationTracker operationTracker;
+  @Nullable
+  private AzureDemandForecaster demandForecaster;
+  @Nullable
+  private AzureTransitionWatchdog transitionWatchdog;
+  @Nullable
+  private AzureTopologySnapshot topologySnapshot;
+  @Nullable
+  private ObjectName metricsName;
+
+  /**
+   * @param registry     management clients shared with the other profiles, disposed by the owner
+   * @param snapshotFile where the topology of the profile is kept across server restarts, or null not to keep it
+   */
+  public AzureCloudClient(CloudClientParameters params,
+                          @NotNull AzurePublishSettingsCache publishSettingsCache,
+                          @NotNull AzureManagementClientRegistry registry,
+                          @NotNull EventDispatcher<BuildServerListener> dispatcher,
+                          @Nullable File snapshotFile) {
     cloudClientParameters = params;
+    clientRegistry = registry;
+    serverDispatcher = dispatcher;
+    keepRunning = Boolean.parseBoolean(cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_KEEP_RUNNING));
+    lifecycleExecutor = new AzureLifecycleExecutor(
+            parseInt(cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_LIFECYCLE_THREADS), AzureCloudConstants.DEFAULT_LIFECYCLE_THREADS));
 
     // Parse publish settings
     String publishSettingsXml = cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_PUBLISHSETTINGS);
@@ -50,21 +128,20 @@ public class AzureCloudClient extends BuildServerAdapter implements CloudClientE
       return;
     }
 
-    AzurePublishSettingsParser parser = new AzurePublishSettingsParser();
+    String subscription = cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_SUBSCRIPTION);
+    if (subscription == null || subscription.trim().length() == 0) {
+      errorInfo = new CloudErrorInfo("No subscription identifier specified");
+      return;
+    }
+
     AzurePublishSettings publishSettings;
     try {
-      publishSettings = parser.parse(publishSettingsXml, new FileOutputStream(AzureCloudConstants.getKeyStorePath()), AzureCloudConstants.KEYSTORE_PWD);
+      publishSettings = publishSettingsCache.get(publishSettingsXml, subscription);
     } catch (Exception ex) {
       errorInfo = new CloudErrorInfo("Error while parsing publish settings: " + ex.getMessage());
       return;
     }
 
-    String subscription = cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_SUBSCRIPTION);
-    if (subscription == null || subscription.trim().length() == 0) {
-      errorInfo = new CloudErrorInfo("No subscription identifier specified");
-      return;
-    }
-
     // Parse VM names
     String vmNames = cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_VMNAMES);
     if (vmNames == null || vmNames.trim().length() == 0) {
@@ -72,36 +149,130 @@ public class AzureCloudClient extends BuildServerAdapter implements CloudClientE
       return;
     }
 
-    List<String> persistentVmNames = new ArrayList<String>();
-    String[] allLines = StringUtil.splitByLines(vmNames.trim());
-    for (String imageInfo : allLines) {
-      imageInfo = imageInfo.trim();
-      if (imageInfo.isEmpty() /*|| imageInfo.startsWith("@@")*/) continue;
+    List<AzureImageSettings> imageSettings;
+    try {
+      imageSettings = new AzureImageSettingsParser().parse(vmNames);
+    } catch (Exception ex) {
+      errorInfo = new CloudErrorInfo("Error while parsing agent VM names: " + ex.getMessage());
+      return;
+    }
 
-      String imageName = imageInfo.trim();
-      persistentVmNames.add(imageName);
+    AzureRoleLocationIndex locationIndex = new AzureRoleLocationIndex(clientRegistry, publishSettings, subscription);
+    if (snapshotFile != null) {
+      topologySnapshot = new AzureTopologySnapshot(snapshotFile, subscription, images, locationIndex);
+      topologySnapshot.load();
+    }
+    operationTracker = new AzureOperationTracker(clientRegistry, publishSettings, subscription);
+    operationTracker.schedule(apiExecutor, AzureCloudConstants.OPERATION_POLL_INTERVAL);
+    roleOperationBatcher = new AzureRoleOperationBatcher(clientRegistry, publishSettings, subscription, operationTracker,
+            executorService, AzureCloudConstants.ROLE_OPERATION_BATCH_WINDOW);
+
+    // images come ordered by priority, TeamCity offers them in the order of getImages()
+    final Map<String, AzureCloudImage> createdImages = new LinkedHashMap<String, AzureCloudImage>();
+    for (AzureImageSettings settings : imageSettings) {
+      AzureCloudImage image = settings.isEphemeral()
+              ? new AzureEphemeralImage(settings, subscription, publishSettings,
+                      clientRegistry, locationIndex, agentIndex, roleOperationBatcher, lifecycleExecutor, apiExecutor, operationTracker)
+              : new AzureCloudImage(settings, subscription, publishSettings,
+                      clientRegistry, locationIndex, agentIndex, roleOperationBatcher, lifecycleExecutor, apiExecutor, topologySnapshot);
+      createdImages.put(image.getId(), image);
+      if (image.getWarmPool() != null) {
+        image.getWarmPool().schedule(AzureCloudConstants.WARM_POOL_CHECK_INTERVAL);
+      }
+    }
+    cloudImages = Collections.unmodifiableMap(createdImages);
+    executorService.scheduleWithFixedDelay(ExceptionUtil.catchAll("Stop idle Azure instances", new AzureIdleStopper(images)),
+            AzureCloudConstants.IDLE_CHECK_INTERVAL, AzureCloudConstants.IDLE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+    transitionWatchdog = new AzureTransitionWatchdog(images, AzureCloudConstants.STARTING_DEADLINE, AzureCloudConstants.STOPPING_DEADLINE,
+            AzureCloudConstants.UNSENT_TRANSITION_DEADLINE);
+    apiExecutor.scheduleWithFixedDelay(ExceptionUtil.catchAll("Recover stuck Azure instances", transitionWatchdog),
+            AzureCloudConstants.WATCHDOG_INTERVAL, AzureCloudConstants.WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+    int predictiveWindow = parseInt(cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_PREDICTIVE_WINDOW), 0);
+    if (predictiveWindow > 0) {
+      demandForecaster = new AzureDemandForecaster(images, predictiveWindow * 60 * 1000L);
+      executorService.scheduleWithFixedDelay(ExceptionUtil.catchAll("Start Azure instances ahead of predicted builds", demandForecaster),
+              AzureCloudConstants.PREDICTION_INTERVAL, AzureCloudConstants.PREDICTION_INTERVAL, TimeUnit.MILLISECONDS);
     }
+    serverDispatcher.addListener(this);
+
+    statusPoller = new AzureStatusPoller(images, clientRegistry, locationIndex, publishSettings, subscription);
+    int pollInterval = parseInt(cloudClientParameters.getParameter(AzureCloudConstants.PARAM_NAME_STATUS_POLL_INTERVAL), AzureCloudConstants.DEFAULT_STATUS_POLL_INTERVAL);
+    apiExecutor.scheduleWithFixedDelay(ExceptionUtil.catchAll("Refresh status of Azure instances", statusPoller), pollInterval, pollInterval, TimeUnit.SECONDS);
+    // picks up VMs the previous client of the profile left running and checks the state taken over from the snapshot
+    apiExecutor.submit(ExceptionUtil.catchAll("Refresh status of Azure instances", statusPoller));
+    if (topologySnapshot != null) {
+      executorService.scheduleWithFixedDelay(ExceptionUtil.catchAll("Save Azure topology snapshot", topologySnapshot),
+              AzureCloudConstants.TOPOLOGY_SNAPSHOT_INTERVAL, AzureCloudConstants.TOPOLOGY_SNAPSHOT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    registerMetrics(subscription);
+  }
+
+  private void registerMetrics(@NotNull final String subscription) {
+    try {
+      final ObjectName name = new ObjectName("jetbrains.buildServer.clouds.azure:type=AzureCloudClient,subscription="
+              + ObjectName.quote(subscription) + ",id=" + CLIENT_COUNTER.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(new AzureCloudMetricsMBean(clientRegistry.getMetrics(subscription),
+              images, clientRegistry.getGovernor(subscription), lifecycleExecutor, transitionWatchdog, demandForecaster), name);
+      metricsName = name;
+    } catch (JMException e) {
+      LOG.warn("Failed to register JMX metrics of Azure cloud client for subscription " + subscription + ": " + e.getMessage(), e);
+    }
+  }
 
-    if (!persistentVmNames.isEmpty()) {
-      String[] persistentVmNamesArray = new String[persistentVmNames.size()];
-      persistentVmNames.toArray(persistentVmNamesArray);
-      AzureCloudImage image = new AzureCloudImage("reusable", "Azure VMs", subscription, publishSettings, persistentVmNamesArray, executorService);
-      cloudImages.add(image);
+  private static int parseInt(@Nullable final String value, final int defaultValue) {
+    if (value == null || value.trim().length() == 0) return defaultValue;
+    try {
+      final int result = Integer.parseInt(value.trim());
+      return result > 0 ? result : defaultValue;
+    } catch (NumberFormatException e) {
+      return defaultValue;
     }
   }
 
   @Nullable
-  private AzureCloudImage findImage(@NotNull final AgentDescription agentDescription) {
-    // TODO: we probably want to do this based on another parameter
-    // e.g. final String imageId = agentDescription.getConfigurationParameters().get("agent.name");
-    final String imageId = "reusable";
-    return imageId == null ? null : (AzureCloudImage)findImageById(imageId);
+  public AzureStatusPoller getStatusPoller() {
+    return statusPoller;
+  }
+
+  @NotNull
+  public AzureLifecycleExecutor getLifecycleExecutor() {
+    return lifecycleExecutor;
   }
 
   @Nullable
-  private String findInstanceId(@NotNull final AgentDescription agentDescription) {
-    // TODO: we probably want to do this based on another parameter
-    return agentDescription.getDefinedParameters().get("system.agent.name");
+  public AzureOperationTracker getOperationTracker() {
+    return operationTracker;
+  }
+
+  @Nullable
+  public ObjectName getMetricsName() {
+    return metricsName;
+  }
+
+  /**
+   * @return true if VMs of listed images keep running when the client is disposed, so the next client of the profile takes them over
+   */
+  public boolean isKeepRunning() {
+    return keepRunning;
+  }
+
+  @Nullable
+  public AzureTopologySnapshot getTopologySnapshot() {
+    return topologySnapshot;
+  }
+
+  @Nullable
+  public AzureTransitionWatchdog getTransitionWatchdog() {
+    return transitionWatchdog;
+  }
+
+  /**
+   * @return forecaster of build demand, or null if predictive starts are disabled for the profile
+   */
+  @Nullable
+  public AzureDemandForecaster getDemandForecaster() {
+    return demandForecaster;
   }
 
   @NotNull
@@ -114,15 +285,99 @@ public class AzureCloudClient extends BuildServerAdapter implements CloudClientE
   }
 
   public void terminateInstance(@NotNull CloudInstance cloudInstance) {
-    ((AzureCloudInstance) cloudInstance).terminate();
+    final AzureCloudInstance instance = (AzureCloudInstance) cloudInstance;
+    if (instance.getStatus() == InstanceStatus.RUNNING && instance.getImage().isWarm(instance)) {
+      // TeamCity terminates agents that stay idle, warm ones are idle on purpose and the pool would only start them again
+      LOG.info("Keeping warm instance " + instance.getInstanceId() + " of image " + instance.getImage().getName() + " running, it is part of the warm pool");
+      return;
+    }
+    instance.terminate();
+  }
+
+  @Override
+  public void agentRegistered(@NotNull SBuildAgent agent, long currentlyRunningBuildId) {
+    final AzureCloudInstance instance = agentIndex.findInstance(agent);
+    if (instance == null) return;
+
+    instance.agentRegistered();
+    if (currentlyRunningBuildId >= 0) {
+      // the agent has reconnected in the middle of a build
+      instance.getImage().agentBusy(instance);
+    }
+  }
+
+  @Override
+  public void agentUnregistered(@NotNull SBuildAgent agent) {
+    final AzureCloudInstance instance = agentIndex.findInstance(agent);
+    if (instance != null && instance.agentUnregistered() && statusPoller != null) {
+      // find out right away whether the VM went down with its agent
+      apiExecutor.submit(ExceptionUtil.catchAll("Refresh status of Azure instances", statusPoller));
+    }
+  }
+
+  @Override
+  public void buildTypeAddedToQueue(@NotNull SQueuedBuild queuedBuild) {
+    if (demandForecaster != null) {
+      demandForecaster.buildQueued(queuedBuild.getWhenQueued().getTime());
+    }
+  }
+
+  @Override
+  public void buildStarted(@NotNull SRunningBuild build) {
+    final SBuildAgent agent = build.getAgent();
+    final AzureCloudInstance instance = agent == null ? null : agentIndex.findInstance(agent);
+    if (instance != null) {
+      instance.getImage().agentBusy(instance);
+    }
+    if (demandForecaster != null) {
+      demandForecaster.buildStarted(System.currentTimeMillis(), instance);
+    }
+  }
+
+  @Override
+  public void buildFinished(@NotNull SRunningBuild build) {
+    final SBuildAgent agent = build.getAgent();
+    final AzureCloudInstance instance = agent == null ? null : agentIndex.findInstance(agent);
+    if (instance != null) {
+      instance.agentIdle();
+    }
+    if (demandForecaster != null) {
+      demandForecaster.buildFinished(System.currentTimeMillis(), build.getDuration() * 1000, instance);
+    }
   }
 
   public void dispose() {
-    for (AzureCloudImage image : cloudImages) {
+    serverDispatcher.removeListener(this);
+    if (metricsName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+      } catch (JMException e) {
+        LOG.debug("Failed to unregister JMX metrics " + metricsName + ": " + e.getMessage());
+      }
+    }
+    final Map<String, AzureCloudImage> disposedImages = cloudImages;
+    for (AzureCloudImage image : disposedImages.values()) {
+      image.stopInstances(keepRunning);
+    }
+    if (roleOperationBatcher != null) {
+      // sends the shutdowns collected above, one request per deployment
+      roleOperationBatcher.dispose(AzureCloudConstants.LIFECYCLE_SHUTDOWN_TIMEOUT);
+    }
+    // bounded, dispose runs on a server thread; stop requests already sent to Azure complete there regardless
+    lifecycleExecutor.shutdown(AzureCloudConstants.LIFECYCLE_SHUTDOWN_TIMEOUT);
+    if (topologySnapshot != null) {
+      // written once the operations have finished, so the next client doesn't wait for stops that are long done
+      topologySnapshot.run();
+    }
+    cloudImages = Collections.emptyMap();
+    for (AzureCloudImage image : disposedImages.values()) {
       image.dispose();
     }
-    cloudImages.clear();
+    if (operationTracker != null) {
+      operationTracker.dispose();
+    }
     executorService.shutdown();
+    apiExecutor.shutdown();
   }
 
   public boolean isInitialized() {
@@ -131,31 +386,17 @@ public class AzureCloudClient extends BuildServerAdapter implements CloudClientE
 
   @Nullable
   public CloudImage findImageById(@NotNull String s) throws CloudException {
-    for (final AzureCloudImage image : cloudImages) {
-      if (image.getId().equals(s)) {
-        return image;
-      }
-    }
-    return null;
-
+    return cloudImages.get(s);
   }
 
   @Nullable
   public CloudInstance findInstanceByAgent(@NotNull AgentDescription agentDescription) {
-    AzureCloudImage image = findImage(agentDescription);
-    if (image == null) return null;
-
-
-    final String instanceId = findInstanceId(agentDescription);
-    if (instanceId == null) return null;
-
-
-    return image.findInstanceById(instanceId);
+    return agentIndex.findInstance(agentDescription);
   }
 
   @NotNull
   public Collection<? extends CloudImage> getImages() throws CloudException {
-    return Collections.unmodifiableList(cloudImages);
+    return cloudImages.values();
   }
 
   @Nullable
@@ -164,18 +405,12 @@ public class AzureCloudClient extends BuildServerAdapter implements CloudClientE
   }
 
   public boolean canStartNewInstance(@NotNull CloudImage cloudImage) {
-    return true;
+    return ((AzureCloudImage) cloudImage).canStartNewInstance();
   }
 
   @Nullable
   public String generateAgentName(@NotNull AgentDescription agentDescription) {
-    AzureCloudImage image = findImage(agentDescription);
-    if (image == null) return null;
-
-
-    String instanceId = findInstanceId(agentDescription);
-    if (instanceId == null) return null;
-
-    return instanceId;
+    final AzureCloudInstance instance = agentIndex.findInstance(agentDescription);
+    return instance == null ? null : instance.getName();
   }
 }
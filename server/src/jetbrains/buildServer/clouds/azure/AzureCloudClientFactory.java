@@ -20,12 +20,18 @@ import jetbrains.buildServer.clouds.CloudClientFactory;
 import jetbrains.buildServer.clouds.CloudClientParameters;
 import jetbrains.buildServer.clouds.CloudRegistrar;
 import jetbrains.buildServer.clouds.CloudState;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettingsCache;
 import jetbrains.buildServer.serverSide.AgentDescription;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.web.openapi.PluginDescriptor;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -36,15 +42,49 @@ import java.util.Map;
 public class AzureCloudClientFactory implements CloudClientFactory {
   @NotNull
   private final String editProfileJspPath;
+  @NotNull
+  private final EventDispatcher<BuildServerListener> serverDispatcher;
+  @NotNull
+  private final File snapshotDirectory;
+  @NotNull
+  private final AzurePublishSettingsCache publishSettingsCache = new AzurePublishSettingsCache(
+          AzureCloudConstants.PUBLISH_SETTINGS_CACHE_SIZE, AzureCloudConstants.PUBLISH_SETTINGS_CACHE_EXPIRATION);
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry = new AzureManagementClientRegistry();
 
-  public AzureCloudClientFactory(@NotNull final CloudRegistrar cloudRegistrar, @NotNull final PluginDescriptor pluginDescriptor) {
+  public AzureCloudClientFactory(@NotNull final CloudRegistrar cloudRegistrar,
+                                 @NotNull final PluginDescriptor pluginDescriptor,
+                                 @NotNull final EventDispatcher<BuildServerListener> dispatcher,
+                                 @NotNull final ServerPaths serverPaths) {
+    serverDispatcher = dispatcher;
+    snapshotDirectory = new File(serverPaths.getPluginDataDirectory(), AzureCloudConstants.TOPOLOGY_SNAPSHOT_DIRECTORY);
     editProfileJspPath = pluginDescriptor.getPluginResourcesPath("profile-settings.jsp");
     cloudRegistrar.registerCloudFactory(this);
+    // clients of all profiles share connections, throttling and metrics of a subscription, so the registry outlives them
+    dispatcher.addListener(new BuildServerAdapter() {
+      @Override
+      public void serverShutdownComplete() {
+        clientRegistry.dispose();
+      }
+    });
   }
 
   @NotNull
   public AzureCloudClient createNewClient(@NotNull final CloudState state, @NotNull final CloudClientParameters params) {
-    return new AzureCloudClient(params);
+    return new AzureCloudClient(params, publishSettingsCache, clientRegistry, serverDispatcher, getSnapshotFile(state.getProfileId()));
+  }
+
+  /**
+   * @return file keeping the topology of the profile across server restarts
+   */
+  @NotNull
+  File getSnapshotFile(@NotNull final String profileId) {
+    return new File(snapshotDirectory, profileId.replaceAll("[^A-Za-z0-9_.-]", "_") + ".topology");
+  }
+
+  @NotNull
+  public AzurePublishSettingsCache getPublishSettingsCache() {
+    return publishSettingsCache;
   }
 
   @NotNull
@@ -18,8 +18,6 @@ package jetbrains.buildServer.clouds.azure;
 
 import org.jetbrains.annotations.NotNull;
 
-import java.io.File;
-
 /**
  * Created by Maarten on 6/5/2014.
  */
@@ -35,16 +33,36 @@ public class AzureCloudConstants {
   @NotNull
   public static final String PARAM_NAME_VMNAMES = "cloud.azure.vmnames";
   @NotNull
-  public static final String KEYSTORE_NAME = "azkst.kst";
+  public static final String PARAM_NAME_STATUS_POLL_INTERVAL = "cloud.azure.status.poll.interval";
+  public static final int DEFAULT_STATUS_POLL_INTERVAL = 60;
+  @NotNull
+  public static final String PARAM_NAME_LIFECYCLE_THREADS = "cloud.azure.lifecycle.threads";
+  public static final int DEFAULT_LIFECYCLE_THREADS = 10;
+  @NotNull
+  public static final String PARAM_NAME_PREDICTIVE_WINDOW = "cloud.azure.predictive.window";
+  @NotNull
+  public static final String PARAM_NAME_KEEP_RUNNING = "cloud.azure.keep.running";
+  public static final long LIFECYCLE_SHUTDOWN_TIMEOUT = 10 * 1000;
+  public static final int API_THREADS = 4;
+  public static final long ROLE_OPERATION_BATCH_WINDOW = 2 * 1000;
+  public static final long OPERATION_POLL_INTERVAL = 5 * 1000;
+  public static final int PUBLISH_SETTINGS_CACHE_SIZE = 16;
+  public static final long PUBLISH_SETTINGS_CACHE_EXPIRATION = 60 * 60 * 1000;
+  public static final int DEFAULT_PARALLEL_PROVISIONS = 4;
+  public static final long WARM_POOL_CHECK_INTERVAL = 60 * 1000;
+  public static final long IDLE_CHECK_INTERVAL = 60 * 1000;
+  public static final long PREDICTION_INTERVAL = 60 * 1000;
+  public static final long WATCHDOG_INTERVAL = 60 * 1000;
+  public static final long STARTING_DEADLINE = 20 * 60 * 1000;
+  public static final long STOPPING_DEADLINE = 10 * 60 * 1000;
+  public static final long UNSENT_TRANSITION_DEADLINE = 60 * 60 * 1000;
+  public static final long TOPOLOGY_SNAPSHOT_INTERVAL = 60 * 1000;
   @NotNull
-  public static final String KEYSTORE_PWD = "azkst";
+  public static final String TOPOLOGY_SNAPSHOT_DIRECTORY = "cloud-azure";
+  @NotNull
+  public static final String AGENT_PARAM_INSTANCE_ID = "cloud.azure.instance.id";
 
   private AzureCloudConstants() {
   }
-
-  public static String getKeyStorePath() {
-    // TODO: Right now the keystore can be used for one cloud profile only. Either support for multiple should be added or a keystore-per-cloud should be created
-    return new File(System.getProperty("java.io.tmpdir"), KEYSTORE_NAME).getPath();
-  }
 }
 
@@ -16,59 +16,132 @@
 
 package jetbrains.buildServer.clouds.azure;
 
+import com.microsoft.windowsazure.management.compute.models.PostShutdownAction;
 import jetbrains.buildServer.clouds.*;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
 import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FuncThrow;
+import jetbrains.buildServer.util.Util;
+import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Maarten on 6/12/2014.
  */
 public class AzureCloudImage implements CloudImage {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureCloudImage.class);
+
   @NotNull
   private final String id;
   @NotNull
   private final String name;
   @NotNull
   private final Map<String, AzureCloudInstance> instances = new ConcurrentHashMap<String, AzureCloudInstance>();
+  @NotNull
+  private final Queue<AzureCloudInstance> provisionedInstances = new ConcurrentLinkedQueue<AzureCloudInstance>();
+  @NotNull
+  private final Queue<AzureCloudInstance> stoppedInstances = new ConcurrentLinkedQueue<AzureCloudInstance>();
+  @NotNull
+  private final Set<AzureCloudInstance> queuedInstances = Collections.newSetFromMap(new ConcurrentHashMap<AzureCloudInstance, Boolean>());
+  @NotNull
+  private final AtomicInteger activeInstances = new AtomicInteger();
+  private final int maxRunningInstances;
+  private final int priority;
+  private final long idleStopTime;
+  private final long idleDeallocateTime;
+  @Nullable
+  private final AzureWarmPool warmPool;
   @Nullable
   private final CloudErrorInfo errorInfo;
   @NotNull
+  private final AzureRoleOperationBatcher roleOperationBatcher;
+  @NotNull
+  private final AzureLifecycleExecutor lifecycleExecutor;
+  @NotNull
   private final ScheduledExecutorService executorService;
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzureRoleLocationIndex locationIndex;
+  @NotNull
+  private final AzureAgentIndex agentIndex;
+  @Nullable
+  private final AzureTopologySnapshot topologySnapshot;
   private String azureSubscriptionId;
   @NotNull
   private AzurePublishSettings azurePublishSettings;
   private boolean isReusable = true;
   private String[] persistentVmNames;
 
-  public AzureCloudImage(@NotNull final String imageId,
-                         @NotNull final String imageName,
+  public AzureCloudImage(@NotNull final AzureImageSettings settings,
                          @NotNull final String subscriptionId,
                          @NotNull final AzurePublishSettings publishSettings,
-                         @NotNull final String[] persistentVmNames,
-                         @NotNull final ScheduledExecutorService executor) {
-    id = imageId;
-    name = imageName;
+                         @NotNull final AzureManagementClientRegistry registry,
+                         @NotNull final AzureRoleLocationIndex index,
+                         @NotNull final AzureAgentIndex agents,
+                         @NotNull final AzureRoleOperationBatcher batcher,
+                         @NotNull final AzureLifecycleExecutor lifecycle,
+                         @NotNull final ScheduledExecutorService executor,
+                         @Nullable final AzureTopologySnapshot snapshot) {
+    id = settings.getId();
+    name = settings.getName();
     azureSubscriptionId = subscriptionId;
     azurePublishSettings = publishSettings;
-    this.persistentVmNames = persistentVmNames;
+    persistentVmNames = settings.getVmNames().toArray(new String[settings.getVmNames().size()]);
+    maxRunningInstances = settings.getMaxRunningInstances() > 0 ? settings.getMaxRunningInstances() : persistentVmNames.length;
+    priority = settings.getPriority();
+    idleStopTime = settings.getIdleStopMinutes() * 60 * 1000L;
+    idleDeallocateTime = settings.getIdleDeallocateMinutes() * 60 * 1000L;
+    clientRegistry = registry;
+    locationIndex = index;
+    agentIndex = agents;
+    roleOperationBatcher = batcher;
+    lifecycleExecutor = lifecycle;
     executorService = executor;
+    topologySnapshot = snapshot;
     errorInfo = null;
     isReusable = true;
+    warmPool = settings.hasWarmPool() ? new AzureWarmPool(this, settings, executor) : null;
 
     populateMyInstances();
   }
 
-  private void populateMyInstances() {
+  protected void populateMyInstances() {
     for (String instanceId : persistentVmNames) {
-      instances.put(instanceId, createInstance(instanceId));
+      final AzureCloudInstance instance = createInstance(instanceId);
+      addInstance(instance);
+      final AzureTopologySnapshot.Entry restored = topologySnapshot == null ? null : topologySnapshot.get(instanceId);
+      if (restored != null && restored.getStatus() != null) {
+        instance.restore(restored.getStatus(), restored.isProvisioned(), restored.getStartedTime());
+      }
+      if (instance.getStatus() == InstanceStatus.STOPPED) {
+        makeAvailable(instance);
+      }
     }
+
+    executorService.submit(ExceptionUtil.catchAll("Resolve Azure locations of image: " + id, new Runnable() {
+      public void run() {
+        try {
+          Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<Void, Exception>() {
+            public Void apply() throws Exception {
+              locationIndex.build(Arrays.asList(persistentVmNames));
+              return null;
+            }
+          });
+        } catch (Exception e) {
+          LOG.warn("Failed to resolve Azure locations of image " + id + ", they will be resolved on first use: " + e.getMessage(), e);
+        }
+      }
+    }));
   }
 
   public boolean isReusable() {
@@ -86,7 +159,7 @@ public class AzureCloudImage implements CloudImage {
   }
 
   @NotNull
-  public Collection<? extends CloudInstance> getInstances() {
+  public Collection<AzureCloudInstance> getInstances() {
     return Collections.unmodifiableCollection(instances.values());
   }
 
@@ -100,27 +173,241 @@ public class AzureCloudImage implements CloudImage {
     return errorInfo;
   }
 
+  public int getPriority() {
+    return priority;
+  }
+
+  public int getMaxRunningInstances() {
+    return maxRunningInstances;
+  }
+
+  /**
+   * @return number of instances that are not stopped, including those being started
+   */
+  public int getActiveInstanceCount() {
+    return activeInstances.get();
+  }
+
+  /**
+   * @return pool of instances kept running ahead of demand, or null if the image doesn't keep any
+   */
+  @Nullable
+  public AzureWarmPool getWarmPool() {
+    return warmPool;
+  }
+
+  public boolean canStartNewInstance() {
+    return (warmPool != null && warmPool.hasReadyInstance()) || canStartInstance();
+  }
+
+  /**
+   * Hands out a warm instance if there is one, otherwise starts a stopped one.
+   */
+  @NotNull
+  public AzureCloudInstance startNewInstance(@NotNull final CloudInstanceUserData data) throws QuotaException {
+    if (warmPool != null) {
+      final AzureCloudInstance warm = warmPool.take(data);
+      if (warm != null) return warm;
+    }
+    return startInstance(data);
+  }
+
+  protected boolean canStartInstance() {
+    return (!provisionedInstances.isEmpty() || !stoppedInstances.isEmpty()) && activeInstances.get() < maxRunningInstances;
+  }
+
+  /**
+   * Starts one more instance of the image.
+   *
+   * @param data user data of the agent, or null when the plugin starts the instance on its own
+   */
   @NotNull
-  public synchronized AzureCloudInstance startNewInstance(@NotNull final CloudInstanceUserData data) {
-    // check reusable instances
-    for (AzureCloudInstance instance : instances.values()) {
-      if (instance.getErrorInfo() == null && instance.getStatus() == InstanceStatus.STOPPED && instance.isRestartable()) {
-        instance.start(data);
+  protected AzureCloudInstance startInstance(@Nullable final CloudInstanceUserData data) throws QuotaException {
+    if (!reserveSlot()) {
+      throw new QuotaException("Image " + name + " already runs the maximum of " + maxRunningInstances + " virtual machines");
+    }
+
+    // instances that are still provisioned start much faster than deallocated ones
+    AzureCloudInstance instance = claim(provisionedInstances, data);
+    if (instance == null) {
+      instance = claim(stoppedInstances, data);
+    }
+    if (instance != null) return instance;
+
+    releaseSlot();
+    throw new QuotaException("All " + instances.size() + " virtual machines of image " + name + " are in use");
+  }
+
+  @Nullable
+  private AzureCloudInstance claim(@NotNull final Queue<AzureCloudInstance> queue, @Nullable final CloudInstanceUserData data) {
+    // entries may be stale, the instance itself decides whether it can still be claimed
+    AzureCloudInstance instance;
+    while ((instance = queue.poll()) != null) {
+      queuedInstances.remove(instance);
+      if (instance.isRestartable() && instance.tryStart(data)) {
         return instance;
       }
     }
-
     return null;
   }
 
+  protected boolean reserveSlot() {
+    while (true) {
+      final int active = activeInstances.get();
+      if (active >= maxRunningInstances) return false;
+      if (activeInstances.compareAndSet(active, active + 1)) return true;
+    }
+  }
+
+  protected void releaseSlot() {
+    activeInstances.decrementAndGet();
+  }
+
+  protected void addInstance(@NotNull final AzureCloudInstance instance) {
+    instances.put(instance.getInstanceId(), instance);
+    agentIndex.register(instance);
+  }
+
+  protected void removeInstance(@NotNull final AzureCloudInstance instance) {
+    instances.remove(instance.getInstanceId());
+    agentIndex.unregister(instance);
+  }
+
+  /**
+   * Called when the agent of the instance has started a build.
+   */
+  void agentBusy(@NotNull final AzureCloudInstance instance) {
+    instance.agentBusy();
+    if (warmPool != null) {
+      warmPool.instanceTaken(instance);
+    }
+  }
+
+  boolean isWarm(@NotNull final AzureCloudInstance instance) {
+    return warmPool != null && warmPool.contains(instance);
+  }
+
+  /**
+   * @return milliseconds an instance may stay idle before the plugin stops it, 0 if it doesn't
+   */
+  public long getIdleStopTime() {
+    return idleStopTime;
+  }
+
+  /**
+   * @return milliseconds a stopped instance stays provisioned before it is deallocated, 0 if it is deallocated right away
+   */
+  public long getIdleDeallocateTime() {
+    return idleDeallocateTime;
+  }
+
+  /**
+   * Stopped instances are kept provisioned for a fast restart when they are deallocated later on.
+   */
+  @NotNull
+  PostShutdownAction getStopAction() {
+    return idleDeallocateTime > 0 ? PostShutdownAction.Stopped : PostShutdownAction.StoppedDeallocated;
+  }
+
+  /**
+   * Takes a provisioned instance out of the free-list while it is deallocated, it returns there once it has stopped again.
+   */
+  void instanceDeallocating(@NotNull final AzureCloudInstance instance) {
+    if (queuedInstances.remove(instance)) {
+      provisionedInstances.remove(instance);
+    }
+  }
+
+  /**
+   * Keeps the count of active instances and the free-list in sync with a status change of one of the instances.
+   * Starts claimed through {@link #startNewInstance} have reserved their slot already and are not reported here.
+   */
+  void instanceStatusChanged(@NotNull final AzureCloudInstance instance, @NotNull final InstanceStatus oldStatus, @NotNull final InstanceStatus newStatus) {
+    if (oldStatus == newStatus) return;
+    if (oldStatus == InstanceStatus.STOPPED) {
+      // e.g. started from the portal, which may exceed the limit until it stops again
+      activeInstances.incrementAndGet();
+    } else if (newStatus == InstanceStatus.STOPPED) {
+      releaseSlot();
+      instanceStopped(instance);
+    }
+  }
+
+  /**
+   * Called when one of the instances has stopped, makes it available to {@link #startNewInstance} again.
+   */
+  protected void instanceStopped(@NotNull final AzureCloudInstance instance) {
+    makeAvailable(instance);
+  }
+
+  /**
+   * Makes the instance available to {@link #startNewInstance}.
+   */
+  private void makeAvailable(@NotNull final AzureCloudInstance instance) {
+    if (queuedInstances.add(instance)) {
+      (instance.isProvisioned() ? provisionedInstances : stoppedInstances).add(instance);
+    }
+  }
+
+  @NotNull
+  protected AzureManagementClientRegistry getClientRegistry() {
+    return clientRegistry;
+  }
+
+  @NotNull
+  protected AzureRoleLocationIndex getLocationIndex() {
+    return locationIndex;
+  }
+
+  @NotNull
+  protected AzureRoleOperationBatcher getRoleOperationBatcher() {
+    return roleOperationBatcher;
+  }
+
+  @NotNull
+  protected AzureLifecycleExecutor getLifecycleExecutor() {
+    return lifecycleExecutor;
+  }
+
+  @NotNull
+  protected AzurePublishSettings getPublishSettings() {
+    return azurePublishSettings;
+  }
+
+  protected String getSubscriptionId() {
+    return azureSubscriptionId;
+  }
+
   protected AzureCloudInstance createInstance(String instanceId) {
-    return new AzureCloudInstance(instanceId, azureSubscriptionId, azurePublishSettings, this, executorService);
+    return new AzureCloudInstance(instanceId, azureSubscriptionId, azurePublishSettings, this, clientRegistry, locationIndex, roleOperationBatcher, lifecycleExecutor);
+  }
+
+  /**
+   * Stops the instances as the cloud client goes away, {@link #dispose} follows once the stops have been sent to Azure.
+   *
+   * @param keepRunning true to leave the VMs running for the next client of the profile, which takes them over
+   */
+  void stopInstances(final boolean keepRunning) {
+    if (warmPool != null) {
+      warmPool.dispose();
+    }
+    if (keepRunning && isReusable()) {
+      LOG.info("Leaving " + activeInstances.get() + " virtual machines of image " + name + " running for the next cloud client");
+      return;
+    }
+    for (final AzureCloudInstance instance : instances.values()) {
+      instance.stopOnDispose();
+    }
   }
 
   void dispose() {
     for (final AzureCloudInstance instance : instances.values()) {
-      instance.terminate();
+      agentIndex.unregister(instance);
     }
     instances.clear();
+    provisionedInstances.clear();
+    stoppedInstances.clear();
+    queuedInstances.clear();
+    activeInstances.set(0);
   }
 }
@@ -16,31 +16,26 @@
 
 package jetbrains.buildServer.clouds.azure;
 
-import com.microsoft.windowsazure.core.utils.KeyStoreType;
+import com.microsoft.windowsazure.exception.ServiceException;
 import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
-import com.microsoft.windowsazure.management.compute.ComputeManagementService;
-import com.microsoft.windowsazure.management.compute.HostedServiceOperations;
 import com.microsoft.windowsazure.management.compute.models.*;
-import com.microsoft.windowsazure.management.configuration.ManagementConfiguration;
 import jetbrains.buildServer.clouds.CloudErrorInfo;
 import jetbrains.buildServer.clouds.CloudInstance;
 import jetbrains.buildServer.clouds.CloudInstanceUserData;
 import jetbrains.buildServer.clouds.InstanceStatus;
 import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
 import jetbrains.buildServer.serverSide.AgentDescription;
-import jetbrains.buildServer.util.ExceptionUtil;
 import jetbrains.buildServer.util.FuncThrow;
 import jetbrains.buildServer.util.Util;
-import jetbrains.buildServer.util.WaitFor;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.net.URI;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by Maarten on 6/12/2014.
@@ -48,7 +43,8 @@ import java.util.concurrent.ScheduledExecutorService;
 public class AzureCloudInstance implements CloudInstance {
   @NotNull
   private static final Logger LOG = Logger.getLogger(AzureCloudInstance.class);
-  private static final int STATUS_WAITING_TIMEOUT = 15 * 60 * 1000;
+  @NotNull
+  static final String ROLE_STATUS_STOPPED_DEALLOCATED = "StoppedDeallocated";
 
   @NotNull
   private final String id;
@@ -57,22 +53,48 @@ public class AzureCloudInstance implements CloudInstance {
   @NotNull
   private Date startDate;
   @NotNull
-  private final ScheduledExecutorService executorService;
+  private final AzureRoleOperationBatcher roleOperationBatcher;
+  @NotNull
+  private final AzureLifecycleExecutor lifecycleExecutor;
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzureRoleLocationIndex locationIndex;
   private String azureSubscriptionId;
   private AzurePublishSettings azurePublishSettings;
   @NotNull
-  private volatile InstanceStatus instanceStatus;
+  private final AtomicReference<InstanceStatus> instanceStatus = new AtomicReference<InstanceStatus>(InstanceStatus.STOPPED);
   @Nullable
   private volatile CloudErrorInfo errorInfo;
-
-  public AzureCloudInstance(@NotNull final String instanceId, String subscriptionId, AzurePublishSettings publishSettings, @NotNull final AzureCloudImage image, @NotNull ScheduledExecutorService executor) {
+  @Nullable
+  private volatile CloudInstanceUserData userData;
+  @NotNull
+  private final AtomicInteger pendingOperations = new AtomicInteger();
+  @NotNull
+  private final AtomicInteger operationGeneration = new AtomicInteger();
+  private volatile long idleSince = 0;
+  private volatile boolean agentBuilding = false;
+  private volatile long stoppedSince = 0;
+  private volatile boolean provisioned = false;
+  @Nullable
+  private volatile Boolean agentConnected = null;
+  private volatile long startRequested = 0;
+  private volatile long agentConnectTime = 0;
+  private volatile long statusSince = System.currentTimeMillis();
+  /* 0 while an operation of ours has changed the status but hasn't reached Azure yet */
+  private volatile long transitionSince = statusSince;
+
+  public AzureCloudInstance(@NotNull final String instanceId, String subscriptionId, AzurePublishSettings publishSettings, @NotNull final AzureCloudImage image, @NotNull AzureManagementClientRegistry registry, @NotNull AzureRoleLocationIndex index,
+                            @NotNull AzureRoleOperationBatcher batcher, @NotNull AzureLifecycleExecutor lifecycle) {
     id = instanceId;
     azureSubscriptionId = subscriptionId;
     azurePublishSettings = publishSettings;
     this.image = image;
-    instanceStatus = InstanceStatus.STOPPED;
     startDate = new Date();
-    executorService = executor;
+    clientRegistry = registry;
+    locationIndex = index;
+    roleOperationBatcher = batcher;
+    lifecycleExecutor = lifecycle;
   }
 
   public boolean isRestartable() {
@@ -104,13 +126,21 @@ public class AzureCloudInstance implements CloudInstance {
     return startDate;
   }
 
+  /**
+   * @return value of {@link AzureCloudConstants#AGENT_PARAM_INSTANCE_ID} passed to the agent, unique across images
+   */
+  @NotNull
+  public String getAgentInstanceId() {
+    return getImageId() + "/" + getInstanceId();
+  }
+
   public String getNetworkIdentity() {
     return "cloud.azure." + getImageId() +"."  + getInstanceId();
   }
 
   @NotNull
   public InstanceStatus getStatus() {
-    return instanceStatus;
+    return instanceStatus.get();
   }
 
   @Nullable
@@ -120,165 +150,672 @@ public class AzureCloudInstance implements CloudInstance {
 
   public boolean containsAgent(@NotNull final AgentDescription agentDescription) {
     final Map<String, String> configParams = agentDescription.getConfigurationParameters();
-    return id.equals(configParams.get("agent.name"));
+    final String instanceId = configParams.get(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID);
+    if (instanceId != null) return getAgentInstanceId().equals(instanceId);
+    return id.equalsIgnoreCase(configParams.get("agent.name"));
+  }
+
+  /**
+   * Applies the status Azure reports for this VM, unless one of our own operations is changing it right now.
+   *
+   * @param azureStatus role instance status as reported by Azure, the reason shown for an error status
+   * @return true if the status has changed
+   */
+  boolean updateStatusFromAzure(@NotNull final InstanceStatus status, final boolean provisionedInAzure, @NotNull final String azureStatus) {
+    final InstanceStatus current = instanceStatus.get();
+    if (pendingOperations.get() > 0 || current == status) return false;
+
+    if (status == InstanceStatus.ERROR) {
+      final String message = "Azure reports virtual machine " + id + " as " + azureStatus;
+      errorInfo = new CloudErrorInfo(message, message);
+    } else {
+      errorInfo = null;
+    }
+    if (status == InstanceStatus.STOPPED) {
+      provisioned = provisionedInAzure;
+      stoppedSince = System.currentTimeMillis();
+    }
+    // a VM Azure reports as ready is not running for TeamCity until its agent has connected
+    final InstanceStatus effective = status == InstanceStatus.RUNNING && Boolean.FALSE.equals(agentConnected) ? InstanceStatus.STARTING : status;
+    if (current == effective) return false;
+    // don't overwrite a transition one of our operations has started meanwhile
+    if (!instanceStatus.compareAndSet(current, effective)) return false;
+    LOG.info("AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " is " + status + " in Azure, was " + current);
+    statusChanged(current, effective);
+    return true;
+  }
+
+  /**
+   * @return milliseconds the instance has been running without a build, 0 if it is busy or not running
+   */
+  public long getIdleTime() {
+    final long since = idleSince;
+    return since == 0 || getStatus() != InstanceStatus.RUNNING ? 0 : System.currentTimeMillis() - since;
+  }
+
+  /**
+   * @return true if the instance is stopped but still provisioned, so it restarts quickly
+   */
+  public boolean isProvisioned() {
+    return provisioned;
+  }
+
+  /**
+   * @return milliseconds since the instance has stopped, 0 if it is not stopped
+   */
+  public long getStoppedTime() {
+    final long since = stoppedSince;
+    return since == 0 || getStatus() != InstanceStatus.STOPPED ? 0 : System.currentTimeMillis() - since;
+  }
+
+  /**
+   * @return true if the instance is running and its agent is building
+   */
+  boolean isAgentBusy() {
+    return idleSince == 0 && getStatus() == InstanceStatus.RUNNING;
+  }
+
+  void agentBusy() {
+    agentBuilding = true;
+    idleSince = 0;
+  }
+
+  void agentIdle() {
+    agentBuilding = false;
+    idleSince = System.currentTimeMillis();
+  }
+
+  /**
+   * @return milliseconds the instance has been in its current status
+   */
+  public long getStatusTime() {
+    return System.currentTimeMillis() - statusSince;
+  }
+
+  /**
+   * @return milliseconds the current transition has been in progress in Azure, 0 while the operation that started it
+   *         hasn't been accepted by Azure yet, e.g. while it waits behind another operation of the instance or for throttling to pass
+   */
+  public long getTransitionTime() {
+    final long since = transitionSince;
+    return since == 0 ? 0 : System.currentTimeMillis() - since;
+  }
+
+  /**
+   * Called once Azure has accepted the operation of the current transition.
+   */
+  void operationSent() {
+    transitionSince = System.currentTimeMillis();
+  }
+
+  /**
+   * @return milliseconds from the last start request until the agent of the instance connected, 0 if not measured yet
+   */
+  public long getAgentConnectTime() {
+    return agentConnectTime;
+  }
+
+  /**
+   * Called when the agent of the instance has registered on the server, the instance is running from now on.
+   */
+  void agentRegistered() {
+    agentConnected = Boolean.TRUE;
+    if (!instanceStatus.compareAndSet(InstanceStatus.STARTING, InstanceStatus.RUNNING)) return;
+
+    final long requested = startRequested;
+    if (requested > 0) {
+      agentConnectTime = System.currentTimeMillis() - requested;
+      getMetrics().record(AzureMetrics.Phase.AGENT_CONNECT, getImageId(), agentConnectTime, true);
+    }
+    LOG.info("Agent of AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " has connected"
+            + (requested > 0 ? " " + agentConnectTime + " ms after the start request" : ""));
+    statusChanged(InstanceStatus.STARTING, InstanceStatus.RUNNING);
+  }
+
+  /**
+   * Called when the agent of the instance has unregistered from the server.
+   *
+   * @return true if the instance was running, it waits for the agent to connect again now
+   */
+  boolean agentUnregistered() {
+    agentConnected = Boolean.FALSE;
+    // a stop of our own is in progress, the agent is expected to go away
+    if (pendingOperations.get() > 0 || !instanceStatus.compareAndSet(InstanceStatus.RUNNING, InstanceStatus.STARTING)) return false;
+
+    LOG.info("Agent of AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " has disconnected, waiting for it to connect again");
+    statusChanged(InstanceStatus.RUNNING, InstanceStatus.STARTING);
+    return true;
+  }
+
+  /**
+   * Called once Azure has started the VM. The instance becomes running once its agent has connected as well,
+   * right away if the agent is connected already or the VM was running before the plugin could see its agent connect.
+   */
+  protected void vmStarted() {
+    if (Boolean.FALSE.equals(agentConnected)) {
+      LOG.info("AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " is started in Azure, waiting for its agent to connect");
+      return;
+    }
+    if (instanceStatus.compareAndSet(InstanceStatus.STARTING, InstanceStatus.RUNNING)) {
+      statusChanged(InstanceStatus.STARTING, InstanceStatus.RUNNING);
+    }
+  }
+
+  /**
+   * Takes over the state the previous client of the profile recorded for the instance, before it is made available.
+   * The first status sweep corrects it if the VM has changed meanwhile.
+   */
+  void restore(@NotNull final InstanceStatus status, final boolean provisionedInAzure, @NotNull final Date startedTime) {
+    startDate = startedTime;
+    provisioned = provisionedInAzure;
+    if (status == InstanceStatus.STOPPED) {
+      stoppedSince = System.currentTimeMillis();
+      return;
+    }
+    if (instanceStatus.compareAndSet(InstanceStatus.STOPPED, status)) {
+      LOG.info("AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " was " + status + " before the restart");
+      statusChanged(InstanceStatus.STOPPED, status);
+    }
   }
 
   public void start(@NotNull final CloudInstanceUserData data) {
-    instanceStatus = InstanceStatus.STARTING;
+    // counted before the transition, so a status sweep can't revert it before the operation is queued
+    pendingOperations.incrementAndGet();
+    startRequested = System.currentTimeMillis();
+    agentConnected = Boolean.FALSE;
+    setStatus(InstanceStatus.STARTING);
+    data.addAgentConfigurationParameter(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID, getAgentInstanceId());
+    userData = data;
+
+    enqueue("Start Azure cloud instance: " + this, new StartAgentCommand(data));
+  }
+
+  /**
+   * Starts the instance only if it is stopped. Of several concurrent callers at most one succeeds.
+   * The image must have reserved a running slot for it, the transition is not reported back to the image.
+   *
+   * @return true if this call has started the instance
+   */
+  boolean tryStart(@Nullable final CloudInstanceUserData data) {
+    // counted before the transition, so a status sweep can't revert it before the operation is queued
+    pendingOperations.incrementAndGet();
+    if (errorInfo != null || !instanceStatus.compareAndSet(InstanceStatus.STOPPED, InstanceStatus.STARTING)) {
+      pendingOperations.decrementAndGet();
+      return false;
+    }
+
+    // the VM was stopped, the start has to wait for its agent to connect
+    startRequested = System.currentTimeMillis();
+    statusSince = startRequested;
+    transitionSince = 0;
+    agentConnected = Boolean.FALSE;
+    if (data != null) {
+      data.addAgentConfigurationParameter(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID, getAgentInstanceId());
+    }
+    userData = data;
+    enqueue("Start Azure cloud instance: " + this, new StartAgentCommand(data));
+    return true;
+  }
 
-    executorService.submit(ExceptionUtil.catchAll("Start Azure cloud instance: " + this, new StartAgentCommand(data)));
+  /**
+   * Hands the running instance out to TeamCity for the given user data, like {@link #tryStart} would for a stopped one.
+   * The agent was started before the data was known, so it doesn't get the profile parameters.
+   */
+  void handOut(@NotNull final CloudInstanceUserData data) {
+    data.addAgentConfigurationParameter(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID, getAgentInstanceId());
+    userData = data;
   }
 
-  public void restart() {
-    waitForStatus(InstanceStatus.RUNNING);
-    instanceStatus = InstanceStatus.RESTARTING;
-    try {
-      doStop();
-      waitForStatus(InstanceStatus.STOPPED);
-      doStart();
-    } catch (final Exception e) {
-      processError(e);
+  /**
+   * @return user data the instance was started or handed out with, or null if the plugin has started it on its own
+   */
+  @Nullable
+  CloudInstanceUserData getUserData() {
+    return userData;
+  }
+
+  /**
+   * Stops the instance if it is still running, unlike {@link #terminate} it doesn't interrupt an operation already in progress.
+   *
+   * @return true if this call has stopped the instance
+   */
+  boolean tryStopIdle() {
+    pendingOperations.incrementAndGet();
+    if (!instanceStatus.compareAndSet(InstanceStatus.RUNNING, InstanceStatus.STOPPING)) {
+      pendingOperations.decrementAndGet();
+      return false;
+    }
+
+    statusChanged(InstanceStatus.RUNNING, InstanceStatus.STOPPING);
+    enqueue("Stop idle Azure cloud instance: " + this, new StopAgentCommand(image.getStopAction()));
+    return true;
+  }
+
+  /**
+   * Deallocates the instance if it is stopped and still provisioned.
+   *
+   * @return true if this call has started the deallocation
+   */
+  boolean tryDeallocate() {
+    pendingOperations.incrementAndGet();
+    if (!provisioned || !instanceStatus.compareAndSet(InstanceStatus.STOPPED, InstanceStatus.STOPPING)) {
+      pendingOperations.decrementAndGet();
+      return false;
     }
+
+    image.instanceDeallocating(this);
+    statusChanged(InstanceStatus.STOPPED, InstanceStatus.STOPPING);
+    enqueue("Deallocate Azure cloud instance: " + this, new StopAgentCommand(PostShutdownAction.StoppedDeallocated));
+    return true;
+  }
+
+  public void restart() {
+    pendingOperations.incrementAndGet();
+    startRequested = System.currentTimeMillis();
+    setStatus(InstanceStatus.RESTARTING);
+
+    enqueue("Restart Azure cloud instance: " + this, new AzureLifecycleExecutor.AsyncOperation() {
+      public void start(@NotNull final Runnable done) {
+        final long restartStart = System.currentTimeMillis();
+        LOG.info("Stopping AzureCloudInstance for restart: " + getImageId() + " - " + getInstanceId());
+        // the instance is started again right away, so there's no point in deallocating it; it stays restarting until
+        // then, a stopped instance would be released to the image and could be claimed by a new start meanwhile
+        shutdownRole(PostShutdownAction.Stopped, false, getMetrics().timed(AzureMetrics.Phase.SHUTDOWN, getImageId(), new AzureOperationCallback() {
+          public void operationSucceeded() {
+            final long stopDuration = System.currentTimeMillis() - restartStart;
+            doStart(getMetrics().timed(AzureMetrics.Phase.START, getImageId(), new AzureOperationCallback() {
+              public void operationSucceeded() {
+                final long totalDuration = System.currentTimeMillis() - restartStart;
+                LOG.info("Restarted AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " in " + totalDuration
+                        + " ms (stop: " + stopDuration + " ms, start: " + (totalDuration - stopDuration) + " ms)");
+                done.run();
+              }
+
+              public void operationFailed(@NotNull final Exception e) {
+                processError(e);
+                done.run();
+              }
+            }));
+          }
+
+          public void operationFailed(@NotNull final Exception e) {
+            processError(e);
+            done.run();
+          }
+        }));
+      }
+    });
   }
 
   public void terminate() {
-    try {
-      doStop();
+    pendingOperations.incrementAndGet();
+    setStatus(InstanceStatus.STOPPING);
+
+    enqueue("Stop Azure cloud instance: " + this, new StopAgentCommand(image.getStopAction()));
+  }
+
+  private void submit(@NotNull final String description, @NotNull final AzureLifecycleExecutor.AsyncOperation operation) {
+    pendingOperations.incrementAndGet();
+    enqueue(description, operation);
+  }
+
+  private void enqueue(@NotNull final String description, @NotNull final AzureLifecycleExecutor.AsyncOperation operation) {
+    final int generation = operationGeneration.get();
+    lifecycleExecutor.submit(id, description, new AzureLifecycleExecutor.AsyncOperation() {
+      public void start(@NotNull final Runnable done) {
+        operation.start(new Runnable() {
+          public void run() {
+            // operations submitted before abandonOperations are no longer counted
+            if (operationGeneration.get() == generation) {
+              pendingOperations.decrementAndGet();
+            }
+            done.run();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Gives up the operation running for the instance, which is hung when the instance is stuck in a transition. It no
+   * longer holds back operations queued after it, and operations submitted so far no longer keep Azure from updating the status.
+   */
+  void abandonOperations() {
+    operationGeneration.incrementAndGet();
+    pendingOperations.set(0);
+    lifecycleExecutor.abandon(id);
+  }
+
+  /**
+   * Shuts the VM down as the cloud client goes away. Operations queued or running for the instance are dropped rather
+   * than waited for, and the shutdown goes to the batcher right away, so the VMs of a deployment stop with one request.
+   */
+  void stopOnDispose() {
+    operationGeneration.incrementAndGet();
+    pendingOperations.set(0);
+    final List<String> dropped = lifecycleExecutor.discard(id);
+    if (!dropped.isEmpty()) {
+      LOG.info("Dropped operations of " + this + " to stop it: " + dropped);
+    }
+
+    final PostShutdownAction action = image.getStopAction();
+    if (instanceStatus.get() == InstanceStatus.STOPPED && (!provisioned || action == PostShutdownAction.Stopped)) return;
+
+    setStatus(InstanceStatus.STOPPING);
+    requestShutdown(action, new AzureOperationCallback() {
+      public void operationSucceeded() {
+        cleanupStoppedInstance();
+      }
+
+      public void operationFailed(@NotNull final Exception e) {
+        processError(e);
+      }
+    });
+  }
+
+  @NotNull
+  AzureMetrics getMetrics() {
+    return clientRegistry.getMetrics(azureSubscriptionId);
+  }
+
+  /**
+   * Reads the status of the VM from Azure, bypassing operations queued for the instance.
+   *
+   * @return role instance status, or null if the VM does not exist
+   */
+  @Nullable
+  String getAzureStatus() throws Exception {
+    final RoleInstance roleInstance = lookupRoleInstance();
+    return roleInstance == null ? null : roleInstance.getInstanceStatus();
+  }
+
+  /**
+   * Ends a transition that is stuck in the given status with the status Azure reports for the VM.
+   *
+   * @return false if the instance has left the stuck status meanwhile
+   */
+  boolean settleTransition(@NotNull final InstanceStatus stuckStatus, @NotNull final InstanceStatus status, final boolean provisionedInAzure) {
+    if (status == InstanceStatus.STOPPED) {
+      provisioned = provisionedInAzure;
+      stoppedSince = System.currentTimeMillis();
+    }
+    if (!instanceStatus.compareAndSet(stuckStatus, status)) return false;
+    errorInfo = null;
+    statusChanged(stuckStatus, status);
+    if (status == InstanceStatus.STOPPED) {
       cleanupStoppedInstance();
-    } catch (final Exception e) {
-      processError(e);
     }
+    return true;
+  }
+
+  /**
+   * Starts the VM again after its start got stuck, the instance stays starting.
+   */
+  void retryStart() {
+    statusSince = System.currentTimeMillis();
+    transitionSince = 0;
+    submit("Retry start of Azure cloud instance: " + this, new StartAgentCommand(null));
+  }
+
+  /**
+   * Shuts the VM down again after its shutdown got stuck, the instance stays stopping.
+   */
+  void retryStop() {
+    statusSince = System.currentTimeMillis();
+    transitionSince = 0;
+    submit("Retry stop of Azure cloud instance: " + this, new StopAgentCommand(image.getStopAction()));
+  }
+
+  /**
+   * Gives up a stuck transition, the instance is reported as failed until Azure reports a stable status for it again.
+   */
+  void failTransition(@NotNull final String message) {
+    processError(new Exception(message));
   }
 
   protected void cleanupStoppedInstance() {
   }
 
-  private void waitForStatus(@NotNull final InstanceStatus status) {
-    new WaitFor(STATUS_WAITING_TIMEOUT) {
-      @Override
-      protected boolean condition() {
-        return instanceStatus == status;
-      }
-    };
+  protected void setStatus(@NotNull final InstanceStatus status) {
+    statusChanged(instanceStatus.getAndSet(status), status);
+  }
+
+  private void statusChanged(@NotNull final InstanceStatus oldStatus, @NotNull final InstanceStatus newStatus) {
+    if (oldStatus != newStatus) {
+      statusSince = System.currentTimeMillis();
+      // a transition started by an operation of ours is timed from when Azure accepts the operation
+      transitionSince = pendingOperations.get() > 0 ? 0 : statusSince;
+    }
+    if (newStatus == InstanceStatus.STOPPED) {
+      agentConnected = Boolean.FALSE;
+      agentBuilding = false;
+    }
+    if (newStatus == InstanceStatus.RUNNING && oldStatus != InstanceStatus.RUNNING && !agentBuilding) {
+      // a freshly started agent has no build yet, unlike one that was left running and has reconnected in the middle of a build
+      idleSince = System.currentTimeMillis();
+    }
+    image.instanceStatusChanged(this, oldStatus, newStatus);
   }
 
   private void processError(@NotNull final Exception e) {
     final String message = e.getMessage();
     LOG.error(message, e);
     errorInfo = new CloudErrorInfo(message, message, e);
-    instanceStatus = InstanceStatus.ERROR;
+    setStatus(InstanceStatus.ERROR);
   }
 
-  private void doStart() throws Exception {
-    Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<Void, RuntimeException>() {
-      public Void apply() {
-        try {
-          doStartInternal();
-        } catch (Exception e) {
-          e.printStackTrace();
-        }
-        return null;
+  /**
+   * Requests the VM to start and returns without waiting for it, the callback is notified once Azure has started it.
+   */
+  protected void doStart(@NotNull final AzureOperationCallback callback) {
+    LOG.info("Starting AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+    setStatus(InstanceStatus.STARTING);
+    startDate = new Date();
+
+    final AzureOperationCallback started = new AzureOperationCallback() {
+      public void operationSucceeded() {
+        provisioned = false;
+        LOG.info("Started AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+        vmStarted();
+        callback.operationSucceeded();
       }
-    });
+
+      public void operationFailed(@NotNull final Exception e) {
+        callback.operationFailed(e);
+      }
+    };
+
+    try {
+      final RoleInstance roleInstance = resolveRoleInstance();
+      if (roleInstance.getInstanceStatus().equalsIgnoreCase(RoleInstanceStatus.READYROLE)) {
+        operationSent();
+        started.operationSucceeded();
+        return;
+      }
+      roleOperationBatcher.start(getLocation(), roleInstance.getRoleName(), createSentListener(), started);
+    } catch (Exception e) {
+      callback.operationFailed(e);
+    }
   }
 
-  private void doStartInternal() throws Exception {
-    LOG.info("Starting AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
-    instanceStatus = InstanceStatus.STARTING;
-    startDate = new Date();
+  /**
+   * Requests the VM to shut down and returns without waiting for it, the callback is notified once Azure has stopped it.
+   *
+   * @param action Stopped to keep the VM provisioned for a fast restart, StoppedDeallocated to release its resources
+   */
+  protected void doStop(@NotNull final PostShutdownAction action, @NotNull final AzureOperationCallback callback) {
+    LOG.info("Stopping AzureCloudInstance: " + getImageId() + " - " + getInstanceId() + " (" + action + ")");
+    setStatus(InstanceStatus.STOPPING);
+    shutdownRole(action, true, callback);
+  }
 
-    // TODO: refactor this to something nicer. This is crap.
-    ComputeManagementClient client = ComputeManagementService.create(ManagementConfiguration.configure(
-            new URI(azurePublishSettings.getManagementUrl()), azureSubscriptionId, AzureCloudConstants.getKeyStorePath(), AzureCloudConstants.KEYSTORE_PWD, KeyStoreType.pkcs12));
-
-    HostedServiceOperations hostedServicesOperations = client.getHostedServicesOperations();
-    HostedServiceListResponse hostedServicesList = hostedServicesOperations.listAsync().get();
-    for (HostedServiceListResponse.HostedService service : hostedServicesList.getHostedServices()) {
-      String serviceName = service.getServiceName();
-      HostedServiceGetDetailedResponse serviceDetails = hostedServicesOperations.getDetailedAsync(serviceName).get();
-
-      List<HostedServiceGetDetailedResponse.Deployment> serviceDeployments = serviceDetails.getDeployments();
-      if (!serviceDeployments.isEmpty()) {
-        for (HostedServiceGetDetailedResponse.Deployment serviceDeployment : serviceDeployments) {
-          for (Role role : serviceDeployment.getRoles()) {
-            if (role.getRoleType() != null && role.getRoleType().equalsIgnoreCase(VirtualMachineRoleType.PersistentVMRole.toString())) {
-              for (RoleInstance instance : serviceDeployment.getRoleInstances()) {
-                if (instance.getRoleName().equalsIgnoreCase(id) && !instance.getInstanceStatus().equalsIgnoreCase(RoleInstanceStatus.READYROLE)) {
-                  client.getVirtualMachinesOperations().startAsync(serviceName, serviceDeployment.getName(), instance.getInstanceName()).get();
-                }
-              }
-            }
-          }
-        }
+  /**
+   * @param reportStopped false to keep the current status once the VM has stopped, e.g. while restarting, so the image
+   *                      doesn't hand the instance out to a new start in between
+   */
+  private void shutdownRole(@NotNull final PostShutdownAction action, final boolean reportStopped, @NotNull final AzureOperationCallback callback) {
+    try {
+      final RoleInstance roleInstance = resolveRoleInstance();
+      final String status = roleInstance.getInstanceStatus();
+      if (status.equalsIgnoreCase(ROLE_STATUS_STOPPED_DEALLOCATED)) {
+        stopped(false, reportStopped, callback).operationSucceeded();
+        return;
       }
+      if (status.equalsIgnoreCase(RoleInstanceStatus.STOPPEDVM) && action == PostShutdownAction.Stopped) {
+        stopped(true, reportStopped, callback).operationSucceeded();
+        return;
+      }
+      roleOperationBatcher.shutdown(getLocation(), roleInstance.getRoleName(), action, createSentListener(),
+              stopped(action == PostShutdownAction.Stopped, reportStopped, callback));
+    } catch (Exception e) {
+      callback.operationFailed(e);
+    }
+  }
+
+  /**
+   * Hands the shutdown to the batcher without reading the VM status first, unlike {@link #doStop}.
+   */
+  protected void requestShutdown(@NotNull final PostShutdownAction action, @NotNull final AzureOperationCallback callback) {
+    try {
+      // the role is named after the VM
+      roleOperationBatcher.shutdown(getLocation(), id, action, createSentListener(), stopped(action == PostShutdownAction.Stopped, true, callback));
+    } catch (Exception e) {
+      callback.operationFailed(e);
     }
+  }
 
-    instanceStatus = InstanceStatus.RUNNING;
-    LOG.info("Started AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+  @NotNull
+  private Runnable createSentListener() {
+    return new Runnable() {
+      public void run() {
+        operationSent();
+      }
+    };
   }
 
-  private void doStop() throws Exception {
-    Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<Void, RuntimeException>() {
-      public Void apply() {
-        try {
-          doStopInternal();
-        } catch (Exception e) {
-          e.printStackTrace();
+  @NotNull
+  private AzureOperationCallback stopped(final boolean keepsProvisioned, final boolean reportStopped, @NotNull final AzureOperationCallback callback) {
+    return new AzureOperationCallback() {
+      public void operationSucceeded() {
+        provisioned = keepsProvisioned;
+        stoppedSince = System.currentTimeMillis();
+        if (reportStopped) {
+          setStatus(InstanceStatus.STOPPED);
+        } else {
+          agentConnected = Boolean.FALSE;
+          agentBuilding = false;
         }
-        return null;
+        LOG.info("Stopped AzureCloudInstance: " + getImageId() + " - " + getInstanceId() + (keepsProvisioned ? ", still provisioned" : ""));
+        callback.operationSucceeded();
+      }
+
+      public void operationFailed(@NotNull final Exception e) {
+        callback.operationFailed(e);
+      }
+    };
+  }
+
+  @NotNull
+  private AzureRoleLocation getLocation() throws Exception {
+    final AzureRoleLocation location = locationIndex.getLocation(id);
+    if (location == null) {
+      throw new Exception("Virtual machine " + id + " was not found in subscription " + azureSubscriptionId);
+    }
+    return location;
+  }
+
+  /**
+   * Looks the VM up at its indexed location, re-resolving the location once if the VM has moved.
+   */
+  @NotNull
+  private RoleInstance resolveRoleInstance() throws Exception {
+    final RoleInstance roleInstance = lookupRoleInstance();
+    if (roleInstance == null) {
+      throw new Exception("Virtual machine " + id + " was not found in subscription " + azureSubscriptionId);
+    }
+    return roleInstance;
+  }
+
+  @Nullable
+  private RoleInstance lookupRoleInstance() throws Exception {
+    return Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<RoleInstance, Exception>() {
+      public RoleInstance apply() throws Exception {
+        final ComputeManagementClient client = clientRegistry.getClient(azurePublishSettings, azureSubscriptionId);
+
+        final RoleInstance roleInstance = findRoleInstance(client, locationIndex.getLocation(id));
+        if (roleInstance != null) return roleInstance;
+
+        locationIndex.invalidate(id);
+        return findRoleInstance(client, locationIndex.getLocation(id));
       }
     });
   }
 
-  private void doStopInternal() throws Exception {
-    LOG.info("Stopping AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
-    instanceStatus = InstanceStatus.STOPPING;
-
-    // TODO: refactor this to something nicer. This is crap.
-    ComputeManagementClient client = ComputeManagementService.create(ManagementConfiguration.configure(
-            new URI(azurePublishSettings.getManagementUrl()), azureSubscriptionId, AzureCloudConstants.getKeyStorePath(), AzureCloudConstants.KEYSTORE_PWD, KeyStoreType.pkcs12));
-
-    HostedServiceOperations hostedServicesOperations = client.getHostedServicesOperations();
-    HostedServiceListResponse hostedServicesList = hostedServicesOperations.listAsync().get();
-    for (HostedServiceListResponse.HostedService service : hostedServicesList.getHostedServices()) {
-      String serviceName = service.getServiceName();
-      HostedServiceGetDetailedResponse serviceDetails = hostedServicesOperations.getDetailedAsync(serviceName).get();
-
-      List<HostedServiceGetDetailedResponse.Deployment> serviceDeployments = serviceDetails.getDeployments();
-      if (!serviceDeployments.isEmpty()) {
-        for (HostedServiceGetDetailedResponse.Deployment serviceDeployment : serviceDeployments) {
-          for (Role role : serviceDeployment.getRoles()) {
-            if (role.getRoleType() != null && role.getRoleType().equalsIgnoreCase(VirtualMachineRoleType.PersistentVMRole.toString())) {
-              for (RoleInstance instance : serviceDeployment.getRoleInstances()) {
-                if (instance.getRoleName().equalsIgnoreCase(id) && !instance.getInstanceStatus().equalsIgnoreCase(RoleInstanceStatus.STOPPEDVM)) {
-                  VirtualMachineShutdownParameters params = new VirtualMachineShutdownParameters();
-                  params.setPostShutdownAction(PostShutdownAction.StoppedDeallocated);
-                  client.getVirtualMachinesOperations().shutdownAsync(serviceName, serviceDeployment.getName(), instance.getInstanceName(), params).get();
-                }
-              }
-            }
-          }
+  @Nullable
+  private RoleInstance findRoleInstance(@NotNull final ComputeManagementClient client, @Nullable final AzureRoleLocation location) throws Exception {
+    if (location == null) return null;
+
+    final DeploymentGetResponse deployment;
+    try {
+      deployment = clientRegistry.getGovernor(azureSubscriptionId).execute("Get deployment " + location.getDeploymentName(), new FuncThrow<DeploymentGetResponse, Exception>() {
+        public DeploymentGetResponse apply() throws Exception {
+          return client.getDeploymentsOperations().getByName(location.getServiceName(), location.getDeploymentName());
         }
+      });
+    } catch (ServiceException e) {
+      if (e.getHttpStatusCode() == 404) return null;
+      throw e;
+    }
+
+    for (RoleInstance instance : deployment.getRoleInstances()) {
+      if (instance.getRoleName().equalsIgnoreCase(id)) {
+        return instance;
       }
     }
+    return null;
+  }
+
+  private class StopAgentCommand implements AzureLifecycleExecutor.AsyncOperation {
+    @NotNull
+    private final PostShutdownAction myAction;
+
+    public StopAgentCommand(@NotNull final PostShutdownAction action) {
+      myAction = action;
+    }
 
-    instanceStatus = InstanceStatus.STOPPED;
-    LOG.info("Stopped AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+    public void start(@NotNull final Runnable done) {
+      doStop(myAction, getMetrics().timed(AzureMetrics.Phase.SHUTDOWN, getImageId(), new AzureOperationCallback() {
+        public void operationSucceeded() {
+          cleanupStoppedInstance();
+          done.run();
+        }
+
+        public void operationFailed(@NotNull final Exception e) {
+          processError(e);
+          done.run();
+        }
+      }));
+    }
   }
 
-  private class StartAgentCommand implements Runnable {
+  private class StartAgentCommand implements AzureLifecycleExecutor.AsyncOperation {
     private final CloudInstanceUserData myData;
 
-    public StartAgentCommand(@NotNull final CloudInstanceUserData data) {
+    public StartAgentCommand(@Nullable final CloudInstanceUserData data) {
       myData = data;
     }
 
-    public void run() {
-      try {
-        doStart();
-      } catch (final Exception e) {
-        processError(e);
-      }
+    public void start(@NotNull final Runnable done) {
+      doStart(getMetrics().timed(AzureMetrics.Phase.START, getImageId(), new AzureOperationCallback() {
+        public void operationSucceeded() {
+          done.run();
+        }
+
+        public void operationFailed(@NotNull final Exception e) {
+          processError(e);
+          done.run();
+        }
+      }));
     }
   }
 }
\ No newline at end of file
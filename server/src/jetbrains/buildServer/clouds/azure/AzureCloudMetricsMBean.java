@@ -0,0 +1,243 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes the {@link AzureMetrics} of a cloud client over JMX, together with the counters of the request governor,
+ * the transition watchdog and the demand forecaster. Attributes of an image are prefixed with its id,
+ * e.g. {@code linux.StartP95Millis}, attributes without a prefix cover the whole subscription.
+ */
+public class AzureCloudMetricsMBean implements DynamicMBean {
+  @NotNull
+  private final Map<String, Value> attributes = new LinkedHashMap<String, Value>();
+
+  public AzureCloudMetricsMBean(@NotNull final AzureMetrics metrics,
+                                @NotNull final Collection<AzureCloudImage> images,
+                                @NotNull final AzureRequestGovernor governor,
+                                @NotNull final AzureLifecycleExecutor lifecycleExecutor,
+                                @Nullable final AzureTransitionWatchdog watchdog,
+                                @Nullable final AzureDemandForecaster forecaster) {
+    for (final AzureMetrics.Phase phase : AzureMetrics.Phase.values()) {
+      addPhase("", phase, new StatsSource() {
+        @Nullable
+        public AzureMetrics.Stats get() {
+          return metrics.getSubscriptionStats(phase);
+        }
+      });
+    }
+    for (final AzureCloudImage image : images) {
+      for (final AzureMetrics.Phase phase : AzureMetrics.Phase.values()) {
+        addPhase(image.getId() + ".", phase, new StatsSource() {
+          @Nullable
+          public AzureMetrics.Stats get() {
+            return metrics.getImageStats(image.getId(), phase);
+          }
+        });
+      }
+      attributes.put(image.getId() + ".ActiveInstances", new Value(Integer.class, "Instances of the image that are not stopped") {
+        public Object get() {
+          return image.getActiveInstanceCount();
+        }
+      });
+    }
+
+    attributes.put("ThrottledCalls", new Value(Long.class, "Calls throttled by Azure") {
+      public Object get() {
+        return governor.getThrottledCalls();
+      }
+    });
+    attributes.put("RetriedCalls", new Value(Long.class, "Calls retried after a throttled or transient failure") {
+      public Object get() {
+        return governor.getRetriedCalls();
+      }
+    });
+    attributes.put("ShortCircuitedCalls", new Value(Long.class, "Calls not attempted while Azure kept failing") {
+      public Object get() {
+        return governor.getShortCircuitedCalls();
+      }
+    });
+    attributes.put("LifecycleQueueDepth", new Value(Integer.class, "Lifecycle operations waiting for a worker") {
+      public Object get() {
+        return lifecycleExecutor.getQueueDepth();
+      }
+    });
+    attributes.put("LifecycleMaxWaitMillis", new Value(Long.class, "Longest time a lifecycle operation waited for a worker") {
+      public Object get() {
+        return lifecycleExecutor.getMaxWaitTime();
+      }
+    });
+
+    if (watchdog != null) {
+      attributes.put("TransitionRecoveries", new Value(Long.class, "Stuck instances returned to a stable status") {
+        public Object get() {
+          return watchdog.getRecoveries();
+        }
+      });
+      attributes.put("TransitionRetries", new Value(Long.class, "Stuck transitions tried again") {
+        public Object get() {
+          return watchdog.getRetries();
+        }
+      });
+      attributes.put("TransitionFailures", new Value(Long.class, "Stuck transitions given up") {
+        public Object get() {
+          return watchdog.getFailures();
+        }
+      });
+    }
+
+    if (forecaster != null) {
+      attributes.put("ForecastAccuracy", new Value(Double.class, "1 minus the weighted absolute percentage error of past forecasts") {
+        public Object get() {
+          return forecaster.getForecastAccuracy();
+        }
+      });
+      attributes.put("PredictiveStarts", new Value(Long.class, "Instances started ahead of predicted builds") {
+        public Object get() {
+          return forecaster.getPredictiveStarts();
+        }
+      });
+      attributes.put("PreemptedStarts", new Value(Long.class, "Predictively started instances a build ran on") {
+        public Object get() {
+          return forecaster.getPreemptedStarts();
+        }
+      });
+      attributes.put("UnusedStarts", new Value(Long.class, "Predictively started instances that stopped without a build") {
+        public Object get() {
+          return forecaster.getUnusedStarts();
+        }
+      });
+    }
+  }
+
+  private void addPhase(@NotNull final String prefix, @NotNull final AzureMetrics.Phase phase, @NotNull final StatsSource source) {
+    final String name = prefix + phase.getDisplayName();
+    attributes.put(name + "Count", new Value(Long.class, "Completed " + phase.getDisplayName() + " calls") {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0L : stats.getCount();
+      }
+    });
+    attributes.put(name + "Errors", new Value(Long.class, "Failed " + phase.getDisplayName() + " calls") {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0L : stats.getErrors();
+      }
+    });
+    attributes.put(name + "ErrorRate", new Value(Double.class, "Share of failed " + phase.getDisplayName() + " calls") {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0.0 : stats.getErrorRate();
+      }
+    });
+    attributes.put(name + "InFlight", new Value(Integer.class, phase.getDisplayName() + " calls in progress") {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0 : stats.getInFlight();
+      }
+    });
+    attributes.put(name + "MeanMillis", new Value(Long.class, "Mean latency of " + phase.getDisplayName()) {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0L : stats.getLatency().getMean();
+      }
+    });
+    addPercentile(name, phase, source, 50);
+    addPercentile(name, phase, source, 95);
+    addPercentile(name, phase, source, 99);
+    attributes.put(name + "MaxMillis", new Value(Long.class, "Maximum latency of " + phase.getDisplayName()) {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0L : stats.getLatency().getMax();
+      }
+    });
+  }
+
+  private void addPercentile(@NotNull final String name, @NotNull final AzureMetrics.Phase phase, @NotNull final StatsSource source, final int percentile) {
+    attributes.put(name + "P" + percentile + "Millis", new Value(Long.class, percentile + "th percentile latency of " + phase.getDisplayName()) {
+      public Object get() {
+        final AzureMetrics.Stats stats = source.get();
+        return stats == null ? 0L : stats.getLatency().getPercentile(percentile / 100.0);
+      }
+    });
+  }
+
+  public Object getAttribute(final String attribute) throws AttributeNotFoundException {
+    final Value value = attributes.get(attribute);
+    if (value == null) throw new AttributeNotFoundException(attribute);
+    return value.get();
+  }
+
+  public void setAttribute(final Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+  }
+
+  public AttributeList getAttributes(final String[] names) {
+    final AttributeList result = new AttributeList();
+    for (String name : names) {
+      final Value value = attributes.get(name);
+      if (value != null) {
+        result.add(new Attribute(name, value.get()));
+      }
+    }
+    return result;
+  }
+
+  public AttributeList setAttributes(final AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(final String actionName, final Object[] params, final String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    final List<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+    for (Map.Entry<String, Value> attribute : attributes.entrySet()) {
+      infos.add(new MBeanAttributeInfo(attribute.getKey(), attribute.getValue().type.getName(), attribute.getValue().description, true, false, false));
+    }
+    return new MBeanInfo(getClass().getName(), "Azure cloud client metrics", infos.toArray(new MBeanAttributeInfo[infos.size()]), null, null, null);
+  }
+
+  private interface StatsSource {
+    @Nullable
+    AzureMetrics.Stats get();
+  }
+
+  private static abstract class Value {
+    @NotNull
+    private final Class<?> type;
+    @NotNull
+    private final String description;
+
+    private Value(@NotNull final Class<?> type, @NotNull final String description) {
+      this.type = type;
+      this.description = description;
+    }
+
+    public abstract Object get();
+  }
+}
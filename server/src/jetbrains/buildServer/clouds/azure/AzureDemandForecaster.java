@@ -0,0 +1,217 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.QuotaException;
+import jetbrains.buildServer.clouds.azure.util.AzureDemandHistory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts instances ahead of builds that the build queue history predicts within the boot window of a VM,
+ * so those builds find a connected agent instead of waiting for a VM to boot.
+ * Each forecast is compared with the builds actually queued once its window has passed.
+ */
+public class AzureDemandForecaster implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureDemandForecaster.class);
+
+  @NotNull
+  private final AzureDemandHistory history = new AzureDemandHistory();
+  @NotNull
+  private final Set<AzureCloudInstance> predictedInstances = Collections.newSetFromMap(new ConcurrentHashMap<AzureCloudInstance, Boolean>());
+  @NotNull
+  private final Queue<Forecast> pendingForecasts = new LinkedList<Forecast>();
+  @NotNull
+  private final Collection<AzureCloudImage> images;
+  private final long bootWindow;
+
+  @NotNull
+  private final AtomicLong predictiveStarts = new AtomicLong();
+  @NotNull
+  private final AtomicLong preemptedStarts = new AtomicLong();
+  @NotNull
+  private final AtomicLong unusedStarts = new AtomicLong();
+  private volatile double lastForecast = 0;
+  private long evaluatedForecasts = 0;
+  private double forecastError = 0;
+  private long actualArrivals = 0;
+
+  public AzureDemandForecaster(@NotNull final Collection<AzureCloudImage> images, final long bootWindow) {
+    this.images = images;
+    this.bootWindow = bootWindow;
+  }
+
+  public void buildQueued(final long time) {
+    history.recordArrival(time);
+  }
+
+  /**
+   * @param instance instance the build runs on, null if it runs on an agent outside of the profile
+   */
+  public void buildStarted(final long time, @Nullable final AzureCloudInstance instance) {
+    history.recordStart(time, instance != null);
+    if (instance != null && predictedInstances.remove(instance)) {
+      preemptedStarts.incrementAndGet();
+      LOG.debug("Build started on predictively started instance " + instance.getInstanceId() + " of image " + instance.getImage().getName());
+    }
+  }
+
+  public void buildFinished(final long time, final long duration, @Nullable final AzureCloudInstance instance) {
+    if (instance != null) {
+      history.recordCloudFinish(time, duration);
+    }
+  }
+
+  public void run() {
+    final long now = System.currentTimeMillis();
+    evaluateForecasts(now);
+
+    final double forecast = history.forecastArrivals(now, bootWindow);
+    lastForecast = forecast;
+    synchronized (pendingForecasts) {
+      pendingForecasts.add(new Forecast(now, forecast));
+    }
+
+    for (AzureCloudInstance instance : predictedInstances) {
+      final InstanceStatus status = instance.getStatus();
+      if ((status == InstanceStatus.STOPPED || status == InstanceStatus.STOPPING || status == InstanceStatus.ERROR) && predictedInstances.remove(instance)) {
+        unusedStarts.incrementAndGet();
+      }
+    }
+
+    int busy = 0;
+    int idle = 0;
+    for (AzureCloudImage image : images) {
+      for (AzureCloudInstance instance : image.getInstances()) {
+        final InstanceStatus status = instance.getStatus();
+        if (instance.isAgentBusy()) {
+          busy++;
+        } else if (status == InstanceStatus.SCHEDULED_TO_START || status == InstanceStatus.STARTING || status == InstanceStatus.RUNNING) {
+          idle++;
+        }
+      }
+    }
+
+    // agents of running builds that finish within the boot window take some of the predicted builds
+    final long averageDuration = history.getAverageCloudDuration();
+    final double freed = averageDuration == 0 ? 0 : busy * Math.min(1, (double)bootWindow / averageDuration);
+    final long demand = Math.round(forecast * history.getCloudShare() - freed);
+
+    int started = 0;
+    for (AzureCloudImage image : images) {
+      while (idle + started < demand) {
+        final AzureCloudInstance instance;
+        try {
+          instance = image.startInstance(null);
+        } catch (QuotaException e) {
+          break;
+        }
+        predictedInstances.add(instance);
+        started++;
+      }
+    }
+
+    if (started > 0) {
+      predictiveStarts.addAndGet(started);
+      LOG.info("Started " + started + " instances ahead of " + String.format("%.1f", forecast) + " builds expected in the next "
+              + bootWindow / 1000 + " seconds, " + busy + " agents busy, " + idle + " idle or starting, forecast accuracy "
+              + String.format("%.0f", getForecastAccuracy() * 100) + "%");
+    }
+  }
+
+  private void evaluateForecasts(final long now) {
+    synchronized (pendingForecasts) {
+      Forecast forecast;
+      while ((forecast = pendingForecasts.peek()) != null && forecast.time + bootWindow <= now) {
+        pendingForecasts.poll();
+        final int actual = history.getArrivals(forecast.time, forecast.time + bootWindow);
+        evaluatedForecasts++;
+        forecastError += Math.abs(forecast.arrivals - actual);
+        actualArrivals += actual;
+      }
+    }
+  }
+
+  /**
+   * @return number of builds expected to be queued within the next boot window, as of the last forecast
+   */
+  public double getLastForecast() {
+    return lastForecast;
+  }
+
+  /**
+   * @return 1 minus the weighted absolute percentage error of all forecasts whose window has passed
+   */
+  public double getForecastAccuracy() {
+    synchronized (pendingForecasts) {
+      if (actualArrivals == 0) return forecastError == 0 ? 1 : 0;
+      return Math.max(0, 1 - forecastError / actualArrivals);
+    }
+  }
+
+  public long getEvaluatedForecasts() {
+    synchronized (pendingForecasts) {
+      return evaluatedForecasts;
+    }
+  }
+
+  /**
+   * @return number of instances started ahead of predicted builds
+   */
+  public long getPredictiveStarts() {
+    return predictiveStarts.get();
+  }
+
+  /**
+   * @return number of predictively started instances that a build ran on, each one a start the build didn't have to wait for
+   */
+  public long getPreemptedStarts() {
+    return preemptedStarts.get();
+  }
+
+  /**
+   * @return number of predictively started instances that stopped without running a build
+   */
+  public long getUnusedStarts() {
+    return unusedStarts.get();
+  }
+
+  public long getBootWindow() {
+    return bootWindow;
+  }
+
+  private static class Forecast {
+    private final long time;
+    private final double arrivals;
+
+    private Forecast(final long time, final double arrivals) {
+      this.time = time;
+      this.arrivals = arrivals;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.QuotaException;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettingsParser;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.util.ExceptionUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.security.SecureRandom;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Image whose virtual machines are created from a captured VM image on demand and deleted, disks included, when terminated.
+ * Every virtual machine gets a cloud service of its own, so several of them can be created at the same time.
+ */
+public class AzureEphemeralImage extends AzureCloudImage {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureEphemeralImage.class);
+
+  @NotNull
+  private final Random random = new SecureRandom();
+  @NotNull
+  private final Queue<Runnable> waitingProvisions = new LinkedList<Runnable>();
+  @NotNull
+  private final AzureImageSettings settings;
+  @NotNull
+  private final AzureOperationTracker operationTracker;
+  private final int maxParallelProvisions;
+  private int runningProvisions = 0;
+  private volatile boolean stopping = false;
+
+  public AzureEphemeralImage(@NotNull final AzureImageSettings settings,
+                             @NotNull final String subscriptionId,
+                             @NotNull final AzurePublishSettings publishSettings,
+                             @NotNull final AzureManagementClientRegistry registry,
+                             @NotNull final AzureRoleLocationIndex index,
+                             @NotNull final AzureAgentIndex agents,
+                             @NotNull final AzureRoleOperationBatcher batcher,
+                             @NotNull final AzureLifecycleExecutor lifecycle,
+                             @NotNull final ScheduledExecutorService executor,
+                             @NotNull final AzureOperationTracker tracker) {
+    super(settings, subscriptionId, publishSettings, registry, index, agents, batcher, lifecycle, executor, null);
+    this.settings = settings;
+    operationTracker = tracker;
+    maxParallelProvisions = settings.getMaxParallelProvisions() > 0 ? settings.getMaxParallelProvisions() : AzureCloudConstants.DEFAULT_PARALLEL_PROVISIONS;
+  }
+
+  @Override
+  protected void populateMyInstances() {
+    // virtual machines are only created on demand
+  }
+
+  @Override
+  public boolean isReusable() {
+    return false;
+  }
+
+  @Override
+  protected boolean canStartInstance() {
+    return getActiveInstanceCount() < getMaxRunningInstances();
+  }
+
+  @NotNull
+  @Override
+  protected AzureCloudInstance startInstance(@Nullable final CloudInstanceUserData data) throws QuotaException {
+    if (!reserveSlot()) {
+      throw new QuotaException("Image " + getName() + " already runs the maximum of " + getMaxRunningInstances() + " virtual machines");
+    }
+
+    final AzureCloudInstance instance = createInstance(generateVmName());
+    addInstance(instance);
+    instance.tryStart(data);
+    return instance;
+  }
+
+  @Override
+  protected void instanceStopped(@NotNull final AzureCloudInstance instance) {
+    // stopped means deleted, the virtual machine won't come back
+    removeInstance(instance);
+    final AzureEphemeralInstance deleted = (AzureEphemeralInstance) instance;
+    if (deleted.isReplaced() && !stopping) {
+      replaceInstance(deleted);
+    }
+  }
+
+  @Override
+  void stopInstances(final boolean keepRunning) {
+    stopping = true;
+    super.stopInstances(keepRunning);
+  }
+
+  /**
+   * Starts a new virtual machine in place of a restarted one, with the user data of the deleted one.
+   */
+  private void replaceInstance(@NotNull final AzureEphemeralInstance deleted) {
+    try {
+      final AzureCloudInstance replacement = startInstance(deleted.getUserData());
+      LOG.info("Started " + replacement.getInstanceId() + " in place of restarted virtual machine " + deleted.getInstanceId() + " of image " + getName());
+    } catch (QuotaException e) {
+      LOG.warn("Cannot replace restarted virtual machine " + deleted.getInstanceId() + " of image " + getName() + ": " + e.getMessage());
+    }
+  }
+
+  @NotNull
+  @Override
+  protected AzureCloudInstance createInstance(@NotNull final String instanceId) {
+    return new AzureEphemeralInstance(instanceId, this);
+  }
+
+  @NotNull
+  AzureImageSettings getSettings() {
+    return settings;
+  }
+
+  @NotNull
+  AzureOperationTracker getOperationTracker() {
+    return operationTracker;
+  }
+
+  /**
+   * Runs the task once fewer than the configured number of virtual machines are being created,
+   * {@link #provisionFinished} must be called when the task is done.
+   */
+  void whenProvisionAllowed(@NotNull final Runnable task) {
+    synchronized (waitingProvisions) {
+      if (runningProvisions >= maxParallelProvisions) {
+        LOG.debug(runningProvisions + " virtual machines of image " + getName() + " are being created, the next one waits");
+        waitingProvisions.add(task);
+        return;
+      }
+      runningProvisions++;
+    }
+    task.run();
+  }
+
+  void provisionFinished() {
+    final Runnable next;
+    synchronized (waitingProvisions) {
+      next = waitingProvisions.poll();
+      if (next == null) {
+        runningProvisions--;
+        return;
+      }
+    }
+    // the slot passes to the waiting task, which must not run on the thread completing an Azure operation
+    getLifecycleExecutor().submit("provision:" + getId(), "Create next virtual machine of image " + getName(),
+            ExceptionUtil.catchAll("Create virtual machine of image " + getName(), next));
+  }
+
+  @NotNull
+  private String generateVmName() {
+    // cloud service names are global, the random part keeps images of different servers apart
+    final StringBuilder name = new StringBuilder(getId().toLowerCase(Locale.ENGLISH)).append('-');
+    synchronized (random) {
+      for (int i = 0; i < AzureImageSettingsParser.VM_NAME_SUFFIX_LENGTH; i++) {
+        name.append(Character.forDigit(random.nextInt(36), 36));
+      }
+    }
+    return name.toString();
+  }
+}
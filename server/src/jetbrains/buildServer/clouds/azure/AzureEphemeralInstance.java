@@ -0,0 +1,287 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.models.*;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
+import jetbrains.buildServer.util.FuncThrow;
+import jetbrains.buildServer.util.Util;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Virtual machine that is created in a cloud service of its own when started and deleted with the service and its disks when stopped.
+ */
+public class AzureEphemeralInstance extends AzureCloudInstance {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureEphemeralInstance.class);
+
+  @NotNull
+  private final AzureEphemeralImage image;
+  private volatile boolean replaced;
+
+  public AzureEphemeralInstance(@NotNull final String instanceId, @NotNull final AzureEphemeralImage image) {
+    super(instanceId, image.getSubscriptionId(), image.getPublishSettings(), image, image.getClientRegistry(), image.getLocationIndex(),
+            image.getRoleOperationBatcher(), image.getLifecycleExecutor());
+    this.image = image;
+  }
+
+  @Override
+  public boolean isRestartable() {
+    return false;
+  }
+
+  /**
+   * Deletes the virtual machine, the image starts a new one in its place once it is gone. Starting it again under the
+   * same name would recreate a virtual machine the image has already forgotten.
+   */
+  @Override
+  public void restart() {
+    LOG.info("Replacing AzureCloudInstance " + getImageId() + " - " + getInstanceId() + " with a new virtual machine");
+    replaced = true;
+    terminate();
+  }
+
+  /**
+   * @return true if the instance has been restarted and is to be replaced once it is deleted
+   */
+  boolean isReplaced() {
+    return replaced;
+  }
+
+  @Override
+  protected void doStart(@NotNull final AzureOperationCallback callback) {
+    LOG.info("Creating AzureCloudInstance: " + getImageId() + " - " + getInstanceId() + " from " + image.getSettings().getSourceImage());
+    setStatus(InstanceStatus.STARTING);
+
+    image.whenProvisionAllowed(new Runnable() {
+      public void run() {
+        final AzureOperationCallback created = new AzureOperationCallback() {
+          public void operationSucceeded() {
+            image.provisionFinished();
+            image.getLocationIndex().update(Collections.singletonMap(AzureRoleLocationIndex.key(getInstanceId()),
+                    new AzureRoleLocation(getInstanceId(), getInstanceId(), getInstanceId())));
+            LOG.info("Created AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+            vmStarted();
+            callback.operationSucceeded();
+          }
+
+          public void operationFailed(@NotNull final Exception e) {
+            image.provisionFinished();
+            callback.operationFailed(e);
+            removeFailedVirtualMachine();
+          }
+        };
+
+        try {
+          final String requestId = createVirtualMachine();
+          operationSent();
+          image.getOperationTracker().track(requestId, "Create virtual machine " + getInstanceId(), created);
+        } catch (Exception e) {
+          created.operationFailed(e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Deletes the virtual machine, there's no stopped state to keep it in.
+   */
+  @Override
+  protected void doStop(@NotNull final PostShutdownAction action, @NotNull final AzureOperationCallback callback) {
+    LOG.info("Deleting AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+    setStatus(InstanceStatus.STOPPING);
+
+    final AzureOperationCallback deleted = new AzureOperationCallback() {
+      public void operationSucceeded() {
+        image.getLocationIndex().invalidate(getInstanceId());
+        setStatus(InstanceStatus.STOPPED);
+        LOG.info("Deleted AzureCloudInstance: " + getImageId() + " - " + getInstanceId());
+        callback.operationSucceeded();
+      }
+
+      public void operationFailed(@NotNull final Exception e) {
+        callback.operationFailed(e);
+      }
+    };
+
+    try {
+      final String requestId = deleteVirtualMachine();
+      if (requestId == null) {
+        deleted.operationSucceeded();
+        return;
+      }
+      operationSent();
+      image.getOperationTracker().track(requestId, "Delete virtual machine " + getInstanceId(), deleted);
+    } catch (Exception e) {
+      callback.operationFailed(e);
+    }
+  }
+
+  /**
+   * Deletes the virtual machine, each one lives in a cloud service of its own, so there is nothing to batch.
+   */
+  @Override
+  protected void requestShutdown(@NotNull final PostShutdownAction action, @NotNull final AzureOperationCallback callback) {
+    doStop(action, callback);
+  }
+
+  /**
+   * Creates the cloud service and requests the deployment of the virtual machine into it.
+   *
+   * @return request id of the deployment operation
+   */
+  @NotNull
+  private String createVirtualMachine() throws Exception {
+    final AzureImageSettings settings = image.getSettings();
+    final OperationResponse response = Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<OperationResponse, Exception>() {
+      public OperationResponse apply() throws Exception {
+        final ComputeManagementClient client = image.getClientRegistry().getClient(image.getPublishSettings(), image.getSubscriptionId());
+        final AzureRequestGovernor governor = image.getClientRegistry().getGovernor(image.getSubscriptionId());
+
+        final HostedServiceCreateParameters service = new HostedServiceCreateParameters();
+        service.setServiceName(getInstanceId());
+        service.setLabel(getInstanceId());
+        service.setLocation(settings.getLocation());
+        service.setDescription("TeamCity agent of image " + image.getName());
+        boolean serviceCreated = true;
+        try {
+          // a conflict means the service exists, retrying won't change that
+          governor.execute("Create cloud service " + getInstanceId(), new FuncThrow<OperationResponse, Exception>() {
+            public OperationResponse apply() throws Exception {
+              return client.getHostedServicesOperations().create(service);
+            }
+          }, false);
+        } catch (ServiceException e) {
+          // the name is unique to this instance, the service is left over from an earlier attempt to start it
+          if (e.getHttpStatusCode() != 409) throw e;
+          LOG.info("Cloud service " + getInstanceId() + " already exists, creating virtual machine " + getInstanceId() + " in it");
+          serviceCreated = false;
+        }
+
+        final Role role = new Role();
+        role.setRoleName(getInstanceId());
+        role.setRoleType(VirtualMachineRoleType.PersistentVMRole.toString());
+        role.setVMImageName(settings.getSourceImage());
+        role.setRoleSize(settings.getRoleSize());
+
+        final VirtualMachineCreateDeploymentParameters deployment = new VirtualMachineCreateDeploymentParameters();
+        deployment.setName(getInstanceId());
+        deployment.setLabel(getInstanceId());
+        deployment.setDeploymentSlot(DeploymentSlot.Production);
+        deployment.setRoles(new ArrayList<Role>(Collections.singletonList(role)));
+        deployment.setVirtualNetworkName(settings.getVirtualNetwork());
+        try {
+          return governor.execute("Create virtual machine " + getInstanceId(), new FuncThrow<OperationResponse, Exception>() {
+            public OperationResponse apply() throws Exception {
+              return client.getVirtualMachinesOperations().beginCreatingDeployment(getInstanceId(), deployment);
+            }
+          });
+        } catch (Exception e) {
+          if (serviceCreated) {
+            deleteEmptyService(client, governor);
+          }
+          throw e;
+        }
+      }
+    });
+
+    if (response == null || response.getRequestId() == null) {
+      throw new Exception("Azure did not return a request id for creation of virtual machine " + getInstanceId());
+    }
+    return response.getRequestId();
+  }
+
+  /**
+   * Deletes what is left of a virtual machine that could not be created, then drops the instance so it no longer holds
+   * a slot of the image. If the deletion fails the instance stays in error until TeamCity terminates it.
+   */
+  private void removeFailedVirtualMachine() {
+    final AzureOperationCallback deleted = new AzureOperationCallback() {
+      public void operationSucceeded() {
+        image.getLocationIndex().invalidate(getInstanceId());
+        if (getStatus() != InstanceStatus.ERROR) return;
+
+        LOG.info("Removing AzureCloudInstance " + getImageId() + " - " + getInstanceId() + ", its virtual machine could not be created");
+        setStatus(InstanceStatus.STOPPED);
+      }
+
+      public void operationFailed(@NotNull final Exception e) {
+        LOG.warn("Failed to delete virtual machine " + getInstanceId() + " that could not be created: " + e.getMessage());
+      }
+    };
+
+    try {
+      final String requestId = deleteVirtualMachine();
+      if (requestId == null) {
+        deleted.operationSucceeded();
+        return;
+      }
+      image.getOperationTracker().track(requestId, "Delete virtual machine " + getInstanceId() + " that could not be created", deleted);
+    } catch (Exception e) {
+      deleted.operationFailed(e);
+    }
+  }
+
+  /**
+   * Deletes the cloud service created for a virtual machine that could not be deployed, so it doesn't outlive the instance.
+   */
+  private void deleteEmptyService(@NotNull final ComputeManagementClient client, @NotNull final AzureRequestGovernor governor) {
+    try {
+      governor.execute("Delete cloud service " + getInstanceId(), new FuncThrow<OperationResponse, Exception>() {
+        public OperationResponse apply() throws Exception {
+          return client.getHostedServicesOperations().delete(getInstanceId());
+        }
+      });
+    } catch (Exception e) {
+      LOG.warn("Failed to delete cloud service " + getInstanceId() + " of virtual machine that could not be created: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Requests deletion of the cloud service together with its deployment and disks.
+   *
+   * @return request id of the operation, or null if the cloud service doesn't exist anymore
+   */
+  @Nullable
+  private String deleteVirtualMachine() throws Exception {
+    final OperationResponse response = Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<OperationResponse, Exception>() {
+      public OperationResponse apply() throws Exception {
+        final ComputeManagementClient client = image.getClientRegistry().getClient(image.getPublishSettings(), image.getSubscriptionId());
+        try {
+          return image.getClientRegistry().getGovernor(image.getSubscriptionId()).execute("Delete cloud service " + getInstanceId(), new FuncThrow<OperationResponse, Exception>() {
+            public OperationResponse apply() throws Exception {
+              return client.getHostedServicesOperations().beginDeletingAll(getInstanceId());
+            }
+          });
+        } catch (ServiceException e) {
+          if (e.getHttpStatusCode() == 404) return null;
+          throw e;
+        }
+      }
+    });
+    return response == null ? null : response.getRequestId();
+  }
+}
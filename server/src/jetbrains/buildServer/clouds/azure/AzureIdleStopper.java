@@ -0,0 +1,59 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+
+/**
+ * Stops instances whose agent has been idle for longer than their image allows, keeping them provisioned for a fast restart,
+ * and deallocates them once they have stayed stopped for the second period of the image.
+ * Idle time is based on the build events the cloud client receives.
+ */
+public class AzureIdleStopper implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureIdleStopper.class);
+
+  @NotNull
+  private final Collection<AzureCloudImage> images;
+
+  public AzureIdleStopper(@NotNull final Collection<AzureCloudImage> images) {
+    this.images = images;
+  }
+
+  public void run() {
+    for (AzureCloudImage image : images) {
+      if (image.getIdleStopTime() == 0 && image.getIdleDeallocateTime() == 0) continue;
+
+      for (AzureCloudInstance instance : image.getInstances()) {
+        if (image.getIdleStopTime() > 0 && !image.isWarm(instance) && instance.getIdleTime() >= image.getIdleStopTime()) {
+          if (instance.tryStopIdle()) {
+            LOG.info("Stopping AzureCloudInstance " + image.getId() + " - " + instance.getInstanceId() + ", its agent has been idle for "
+                    + image.getIdleStopTime() / 60000 + " minutes");
+          }
+        } else if (image.getIdleDeallocateTime() > 0 && instance.isProvisioned() && instance.getStoppedTime() >= image.getIdleDeallocateTime()) {
+          if (instance.tryDeallocate()) {
+            LOG.info("Deallocating AzureCloudInstance " + image.getId() + " - " + instance.getInstanceId() + ", it has been stopped for "
+                    + image.getIdleDeallocateTime() / 60000 + " minutes");
+          }
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.core.pipeline.apache.ApacheConfigurationProperties;
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLContext;
+import java.util.Map;
+
+/**
+ * Management certificate credentials backed by an SSL context built from an in-memory key store,
+ * unlike the SDK's certificate credentials which read the key store from a file.
+ */
+public class AzureKeyStoreCredentials extends SubscriptionCloudCredentials {
+  @NotNull
+  private final String subscriptionId;
+  @NotNull
+  private final SSLContext sslContext;
+
+  public AzureKeyStoreCredentials(@NotNull final String subscriptionId, @NotNull final SSLContext sslContext) {
+    this.subscriptionId = subscriptionId;
+    this.sslContext = sslContext;
+  }
+
+  @Override
+  public String getSubscriptionId() {
+    return subscriptionId;
+  }
+
+  @Override
+  public <T> void applyConfig(final String profile, final Map<String, Object> properties) {
+    properties.put(profile + ApacheConfigurationProperties.PROPERTY_SSL_CONNECTION_SOCKET_FACTORY, new SSLConnectionSocketFactory(sslContext));
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs VM lifecycle operations (start, stop, restart) on a bounded worker pool.
+ * Operations submitted with different keys run concurrently, operations with the same key run in submission order,
+ * each one starting after the previous one has completed.
+ */
+public class AzureLifecycleExecutor {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureLifecycleExecutor.class);
+  private static final long WAIT_TIME_REPORT_THRESHOLD = 5 * 1000;
+
+  @NotNull
+  private final ThreadPoolExecutor executor;
+  @NotNull
+  private final Map<String, Queue<QueuedTask>> queues = new HashMap<String, Queue<QueuedTask>>();
+  @NotNull
+  private final AtomicInteger queuedTasks = new AtomicInteger();
+  @NotNull
+  private final AtomicLong startedTasks = new AtomicLong();
+  @NotNull
+  private final AtomicLong totalWaitTime = new AtomicLong();
+  private volatile long maxWaitTime = 0;
+
+  public AzureLifecycleExecutor(final int poolSize) {
+    executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedDeamonThreadFactory("azure-cloud-lifecycle"));
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  public void submit(@NotNull final String key, @NotNull final String description, @NotNull final Runnable task) {
+    submit(key, description, new AsyncOperation() {
+      public void start(@NotNull final Runnable done) {
+        try {
+          task.run();
+        } finally {
+          done.run();
+        }
+      }
+    });
+  }
+
+  /**
+   * Submits an operation that completes asynchronously. The next operation with the same key starts only
+   * after this one has reported completion, but no worker thread is held while waiting for it.
+   */
+  public void submit(@NotNull final String key, @NotNull final String description, @NotNull final AsyncOperation operation) {
+    final Queue<QueuedTask> queue;
+    synchronized (queues) {
+      final Queue<QueuedTask> existing = queues.get(key);
+      queuedTasks.incrementAndGet();
+      if (existing != null) {
+        // an operation of this key is already running, this one is started when it completes
+        existing.add(new QueuedTask(description, operation));
+        return;
+      }
+
+      queue = new LinkedList<QueuedTask>();
+      queue.add(new QueuedTask(description, operation));
+      queues.put(key, queue);
+    }
+
+    dispatch(key, queue);
+  }
+
+  private void dispatch(@NotNull final String key, @NotNull final Queue<QueuedTask> queue) {
+    final Runnable next = new Runnable() {
+      public void run() {
+        runNext(key, queue);
+      }
+    };
+    final QueuedTask task;
+    synchronized (queues) {
+      task = queue.peek();
+    }
+    try {
+      final Future<?> future = executor.submit(next);
+      if (task != null) {
+        task.future = future;
+      }
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Lifecycle executor is shut down, running next operation of " + key + " on the calling thread");
+      next.run();
+    }
+  }
+
+  private void runNext(@NotNull final String key, @NotNull final Queue<QueuedTask> queue) {
+    final QueuedTask task;
+    synchronized (queues) {
+      task = queue.peek();
+    }
+    if (task == null) return;
+    queuedTasks.decrementAndGet();
+
+    final long waitTime = System.currentTimeMillis() - task.submitTime;
+    startedTasks.incrementAndGet();
+    totalWaitTime.addAndGet(waitTime);
+    if (waitTime > maxWaitTime) {
+      maxWaitTime = waitTime;
+    }
+    if (waitTime >= WAIT_TIME_REPORT_THRESHOLD) {
+      LOG.info("'" + task.description + "' waited " + waitTime + " ms for a lifecycle worker, " + queuedTasks.get() + " operations still queued");
+    }
+
+    final AtomicBoolean completed = new AtomicBoolean();
+    task.done = new Runnable() {
+      public void run() {
+        if (!completed.compareAndSet(false, true)) return;
+        synchronized (queues) {
+          queue.poll();
+          if (queue.isEmpty()) {
+            // the queue may have been discarded, a new one of the key is not this one's to remove
+            if (queues.get(key) == queue) {
+              queues.remove(key);
+            }
+            queues.notifyAll();
+            return;
+          }
+        }
+        dispatch(key, queue);
+      }
+    };
+
+    try {
+      task.operation.start(task.done);
+    } catch (Throwable t) {
+      LOG.error("Lifecycle operation '" + task.description + "' failed: " + t.getMessage(), t);
+      task.done.run();
+    }
+  }
+
+  /**
+   * Gives up the operation running for the key, e.g. one hanging in an Azure call. It is cancelled and the next operation
+   * of the key starts as if it had completed, a late completion of the abandoned operation is ignored.
+   *
+   * @return description of the abandoned operation, or null if no operation of the key has started
+   */
+  @Nullable
+  public String abandon(@NotNull final String key) {
+    final QueuedTask task;
+    synchronized (queues) {
+      final Queue<QueuedTask> queue = queues.get(key);
+      task = queue == null ? null : queue.peek();
+    }
+    final Runnable done = task == null ? null : task.done;
+    if (done == null) return null;
+
+    LOG.warn("Abandoning lifecycle operation '" + task.description + "' after " + (System.currentTimeMillis() - task.submitTime) + " ms");
+    final Future<?> future = task.future;
+    if (future != null) {
+      future.cancel(true);
+    }
+    done.run();
+    return task.description;
+  }
+
+  /**
+   * Drops all operations of the key: the running one is cancelled like by {@link #abandon}, the queued ones never start.
+   *
+   * @return descriptions of the dropped operations
+   */
+  @NotNull
+  public List<String> discard(@NotNull final String key) {
+    final List<QueuedTask> tasks;
+    synchronized (queues) {
+      final Queue<QueuedTask> queue = queues.remove(key);
+      if (queue == null) return Collections.emptyList();
+      tasks = new ArrayList<QueuedTask>(queue);
+      // a late completion of the running operation finds nothing left to dispatch
+      queue.clear();
+      queues.notifyAll();
+    }
+
+    final List<String> dropped = new ArrayList<String>();
+    for (QueuedTask task : tasks) {
+      dropped.add(task.description);
+      if (task.done == null) {
+        queuedTasks.decrementAndGet();
+      }
+      final Future<?> future = task.future;
+      if (future != null) {
+        future.cancel(true);
+      }
+    }
+    return dropped;
+  }
+
+  public int getPoolSize() {
+    return executor.getMaximumPoolSize();
+  }
+
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * @return number of submitted operations that have not started yet
+   */
+  public int getQueueDepth() {
+    return queuedTasks.get();
+  }
+
+  public long getAverageWaitTime() {
+    final long started = startedTasks.get();
+    return started == 0 ? 0 : totalWaitTime.get() / started;
+  }
+
+  public long getMaxWaitTime() {
+    return maxWaitTime;
+  }
+
+  /**
+   * Lets already submitted operations finish, waiting for them at most the given time. Operations still running or
+   * queued then are abandoned and logged, a VM they haven't reached yet keeps its current state in Azure.
+   */
+  public void shutdown(final long timeoutMillis) {
+    executor.shutdown();
+    final long deadline = System.currentTimeMillis() + timeoutMillis;
+    try {
+      synchronized (queues) {
+        long remaining = timeoutMillis;
+        while (!queues.isEmpty() && remaining > 0) {
+          queues.wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+        if (!queues.isEmpty()) {
+          final List<String> abandoned = new ArrayList<String>();
+          for (Queue<QueuedTask> queue : queues.values()) {
+            for (QueuedTask task : queue) {
+              abandoned.add(task.description);
+            }
+          }
+          LOG.warn("Azure lifecycle operations did not finish in " + timeoutMillis + " ms, abandoning " + abandoned.size() + " of them: " + abandoned);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * An operation that may finish after {@link #start} has returned, e.g. when Azure reports its completion.
+   */
+  public interface AsyncOperation {
+    /**
+     * Starts the operation. {@code done} must be run once the operation has finished, successfully or not.
+     */
+    void start(@NotNull Runnable done);
+  }
+
+  private static class QueuedTask {
+    @NotNull
+    private final String description;
+    @NotNull
+    private final AsyncOperation operation;
+    private final long submitTime = System.currentTimeMillis();
+    @Nullable
+    private volatile Future<?> future;
+    @Nullable
+    private volatile Runnable done;
+
+    private QueuedTask(@NotNull final String description, @NotNull final AsyncOperation operation) {
+      this.description = description;
+      this.operation = operation;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.Configuration;
+import com.microsoft.windowsazure.core.pipeline.apache.ApacheConfigurationProperties;
+import com.microsoft.windowsazure.core.utils.KeyStoreType;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.ComputeManagementService;
+import com.microsoft.windowsazure.management.configuration.ManagementConfiguration;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.clouds.azure.util.KeyStoreUtil;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.net.URI;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hands out long-lived {@link ComputeManagementClient} instances, one per management URL and subscription.
+ * Clients share a pooled HTTP connection manager, so TLS sessions are kept alive between Azure calls.
+ * Calls should be made through the {@link AzureRequestGovernor} of the subscription.
+ */
+public class AzureManagementClientRegistry {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureManagementClientRegistry.class);
+  private static final int MAX_CONNECTIONS = 20;
+  private static final int CONNECT_TIMEOUT = 30 * 1000;
+  private static final int SOCKET_TIMEOUT = 2 * 60 * 1000;
+
+  @NotNull
+  private final Map<String, ClientHolder> clients = new ConcurrentHashMap<String, ClientHolder>();
+  @NotNull
+  private final Map<String, AzureRequestGovernor> governors = new HashMap<String, AzureRequestGovernor>();
+  @NotNull
+  private final Map<String, AzureMetrics> metrics = new HashMap<String, AzureMetrics>();
+  private volatile boolean disposed = false;
+
+  @NotNull
+  public ComputeManagementClient getClient(@NotNull final AzurePublishSettings publishSettings, @NotNull final String subscriptionId) throws Exception {
+    final String key = publishSettings.getManagementUrl() + "|" + subscriptionId;
+    final KeyStore keyStore = publishSettings.getManagementKeyStore();
+
+    ClientHolder holder = clients.get(key);
+    if (holder != null && holder.keyStore == keyStore) {
+      return holder.client;
+    }
+
+    synchronized (clients) {
+      if (disposed) {
+        throw new IllegalStateException("Azure management client registry has been disposed");
+      }
+
+      final String fingerprint = new KeyStoreUtil().getCertificateFingerprint(keyStore);
+      holder = clients.get(key);
+      if (holder != null) {
+        if (holder.fingerprint.equals(fingerprint)) {
+          holder.keyStore = keyStore;
+          return holder.client;
+        }
+
+        LOG.info("Management certificate for subscription " + subscriptionId + " has changed, re-creating Azure management client");
+        clients.remove(key);
+        holder.close();
+      }
+
+      holder = createClient(publishSettings.getManagementUrl(), subscriptionId, keyStore, fingerprint);
+      clients.put(key, holder);
+      return holder.client;
+    }
+  }
+
+  @NotNull
+  public AzureRequestGovernor getGovernor(@NotNull final String subscriptionId) {
+    synchronized (governors) {
+      AzureRequestGovernor governor = governors.get(subscriptionId);
+      if (governor == null) {
+        governor = new AzureRequestGovernor(subscriptionId);
+        governors.put(subscriptionId, governor);
+      }
+      return governor;
+    }
+  }
+
+  @NotNull
+  public AzureMetrics getMetrics(@NotNull final String subscriptionId) {
+    synchronized (metrics) {
+      AzureMetrics result = metrics.get(subscriptionId);
+      if (result == null) {
+        result = new AzureMetrics(subscriptionId);
+        metrics.put(subscriptionId, result);
+      }
+      return result;
+    }
+  }
+
+  public void dispose() {
+    final List<ClientHolder> holders;
+    synchronized (clients) {
+      disposed = true;
+      holders = new ArrayList<ClientHolder>(clients.values());
+      clients.clear();
+    }
+
+    for (ClientHolder holder : holders) {
+      holder.close();
+    }
+
+    synchronized (governors) {
+      for (AzureRequestGovernor governor : governors.values()) {
+        governor.dispose();
+      }
+      governors.clear();
+    }
+  }
+
+  @NotNull
+  private ClientHolder createClient(@NotNull final String managementUrl,
+                                    @NotNull final String subscriptionId,
+                                    @NotNull final KeyStore keyStore,
+                                    @NotNull final String fingerprint) throws Exception {
+    LOG.info("Creating Azure management client for " + managementUrl + ", subscription " + subscriptionId);
+
+    SSLContext sslContext = new KeyStoreUtil().createSSLContext(keyStore);
+    Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("https", new SSLConnectionSocketFactory(sslContext))
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .build();
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+    connectionManager.setMaxTotal(MAX_CONNECTIONS);
+    connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS);
+    connectionManager.setDefaultSocketConfig(SocketConfig.custom().setSoTimeout(SOCKET_TIMEOUT).build());
+
+    // without timeouts a call Azure never answers holds its thread, and the lifecycle operation waiting for it, forever
+    HttpClientBuilder httpClientBuilder = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                    .setConnectTimeout(CONNECT_TIMEOUT)
+                    .setConnectionRequestTimeout(CONNECT_TIMEOUT)
+                    .setSocketTimeout(SOCKET_TIMEOUT)
+                    .build());
+
+    // the key store path is never read, the credentials below hand the in-memory key store to the client
+    Configuration configuration = ManagementConfiguration.configure("", Configuration.load(), new URI(managementUrl),
+            subscriptionId, "", "", KeyStoreType.pkcs12);
+    configuration.setProperty(ManagementConfiguration.SUBSCRIPTION_CLOUD_CREDENTIALS, new AzureKeyStoreCredentials(subscriptionId, sslContext));
+    configuration.setProperty(ApacheConfigurationProperties.PROPERTY_CONNECTION_MANAGER, connectionManager);
+    configuration.setProperty(ApacheConfigurationProperties.PROPERTY_HTTP_CLIENT_BUILDER, httpClientBuilder);
+
+    ComputeManagementClient client = ComputeManagementService.create(configuration).withResponseFilterLast(getGovernor(subscriptionId).getResponseFilter());
+    return new ClientHolder(client, connectionManager, keyStore, fingerprint);
+  }
+
+  private static class ClientHolder {
+    @NotNull
+    private final ComputeManagementClient client;
+    @NotNull
+    private final PoolingHttpClientConnectionManager connectionManager;
+    @NotNull
+    private final String fingerprint;
+    @NotNull
+    private volatile KeyStore keyStore;
+
+    private ClientHolder(@NotNull final ComputeManagementClient client,
+                         @NotNull final PoolingHttpClientConnectionManager connectionManager,
+                         @NotNull final KeyStore keyStore,
+                         @NotNull final String fingerprint) {
+      this.client = client;
+      this.connectionManager = connectionManager;
+      this.keyStore = keyStore;
+      this.fingerprint = fingerprint;
+    }
+
+    private void close() {
+      try {
+        client.close();
+      } catch (IOException e) {
+        LOG.warn("Failed to close Azure management client: " + e.getMessage(), e);
+      } finally {
+        connectionManager.shutdown();
+      }
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.azure.util.AzureLatencyHistogram;
+import jetbrains.buildServer.util.FuncThrow;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, call and error counts and in-flight gauges of the phases VMs go through, for a subscription as a whole
+ * and for each image in it. Calls that are not made on behalf of an image only count for the subscription.
+ */
+public class AzureMetrics {
+  public enum Phase {
+    LIST_SERVICES("ListServices"),
+    GET_DETAILS("GetDetails"),
+    START("Start"),
+    SHUTDOWN("Shutdown"),
+    AGENT_CONNECT("AgentConnect");
+
+    @NotNull
+    private final String displayName;
+
+    Phase(@NotNull final String displayName) {
+      this.displayName = displayName;
+    }
+
+    @NotNull
+    public String getDisplayName() {
+      return displayName;
+    }
+  }
+
+  @NotNull
+  private final Map<Phase, Stats> subscriptionStats = new ConcurrentHashMap<Phase, Stats>();
+  @NotNull
+  private final Map<String, Map<Phase, Stats>> imageStats = new ConcurrentHashMap<String, Map<Phase, Stats>>();
+  @NotNull
+  private final String subscriptionId;
+
+  public AzureMetrics(@NotNull final String subscriptionId) {
+    this.subscriptionId = subscriptionId;
+    for (Phase phase : Phase.values()) {
+      subscriptionStats.put(phase, new Stats());
+    }
+  }
+
+  @NotNull
+  public String getSubscriptionId() {
+    return subscriptionId;
+  }
+
+  /**
+   * Wraps a single Azure call so that each attempt of it is measured.
+   */
+  @NotNull
+  public <T> FuncThrow<T, Exception> timed(@NotNull final Phase phase, @Nullable final String imageId, @NotNull final FuncThrow<T, Exception> call) {
+    return new FuncThrow<T, Exception>() {
+      public T apply() throws Exception {
+        final long start = begin(phase, imageId);
+        boolean success = false;
+        try {
+          final T result = call.apply();
+          success = true;
+          return result;
+        } finally {
+          end(phase, imageId, start, success);
+        }
+      }
+    };
+  }
+
+  /**
+   * Measures an asynchronous operation from now until the returned callback is notified.
+   */
+  @NotNull
+  public AzureOperationCallback timed(@NotNull final Phase phase, @Nullable final String imageId, @NotNull final AzureOperationCallback callback) {
+    final long start = begin(phase, imageId);
+    return new AzureOperationCallback() {
+      public void operationSucceeded() {
+        end(phase, imageId, start, true);
+        callback.operationSucceeded();
+      }
+
+      public void operationFailed(@NotNull final Exception e) {
+        end(phase, imageId, start, false);
+        callback.operationFailed(e);
+      }
+    };
+  }
+
+  /**
+   * Records a phase measured elsewhere, e.g. the time an agent took to connect.
+   */
+  public void record(@NotNull final Phase phase, @Nullable final String imageId, final long millis, final boolean success) {
+    for (Stats stats : getStats(phase, imageId)) {
+      stats.complete(millis, success);
+    }
+  }
+
+  @NotNull
+  public Stats getSubscriptionStats(@NotNull final Phase phase) {
+    return subscriptionStats.get(phase);
+  }
+
+  /**
+   * @return statistics of the image, or null if nothing has been recorded for it yet
+   */
+  @Nullable
+  public Stats getImageStats(@NotNull final String imageId, @NotNull final Phase phase) {
+    final Map<Phase, Stats> stats = imageStats.get(imageId);
+    return stats == null ? null : stats.get(phase);
+  }
+
+  private long begin(@NotNull final Phase phase, @Nullable final String imageId) {
+    for (Stats stats : getStats(phase, imageId)) {
+      stats.inFlight.incrementAndGet();
+    }
+    return System.currentTimeMillis();
+  }
+
+  private void end(@NotNull final Phase phase, @Nullable final String imageId, final long start, final boolean success) {
+    final long duration = System.currentTimeMillis() - start;
+    for (Stats stats : getStats(phase, imageId)) {
+      stats.inFlight.decrementAndGet();
+      stats.complete(duration, success);
+    }
+  }
+
+  @NotNull
+  private Collection<Stats> getStats(@NotNull final Phase phase, @Nullable final String imageId) {
+    final Collection<Stats> result = new ArrayList<Stats>(2);
+    result.add(subscriptionStats.get(phase));
+    if (imageId != null) {
+      Map<Phase, Stats> stats = imageStats.get(imageId);
+      if (stats == null) {
+        synchronized (imageStats) {
+          stats = imageStats.get(imageId);
+          if (stats == null) {
+            stats = new ConcurrentHashMap<Phase, Stats>();
+            for (Phase p : Phase.values()) {
+              stats.put(p, new Stats());
+            }
+            imageStats.put(imageId, stats);
+          }
+        }
+      }
+      result.add(stats.get(phase));
+    }
+    return result;
+  }
+
+  /**
+   * Measurements of one phase in one scope.
+   */
+  public static class Stats {
+    @NotNull
+    private final AzureLatencyHistogram latency = new AzureLatencyHistogram();
+    @NotNull
+    private final AtomicLong errors = new AtomicLong();
+    @NotNull
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private void complete(final long millis, final boolean success) {
+      latency.record(millis);
+      if (!success) {
+        errors.incrementAndGet();
+      }
+    }
+
+    @NotNull
+    public AzureLatencyHistogram getLatency() {
+      return latency;
+    }
+
+    public long getCount() {
+      return latency.getCount();
+    }
+
+    public long getErrors() {
+      return errors.get();
+    }
+
+    /**
+     * @return share of completed calls that failed
+     */
+    public double getErrorRate() {
+      final long count = latency.getCount();
+      return count == 0 ? 0 : (double)errors.get() / count;
+    }
+
+    public int getInFlight() {
+      return inFlight.get();
+    }
+  }
+}
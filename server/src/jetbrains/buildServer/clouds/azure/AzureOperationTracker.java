@@ -0,0 +1,198 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.core.OperationStatus;
+import com.microsoft.windowsazure.core.OperationStatusResponse;
+import com.microsoft.windowsazure.exception.ServiceException;
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FuncThrow;
+import jetbrains.buildServer.util.Util;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows asynchronous Management API operations by their request id and notifies their callbacks once Azure
+ * reports them as finished. The status of all in-flight operations is requested together on every poll,
+ * so no thread is held while an operation is running.
+ */
+public class AzureOperationTracker implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureOperationTracker.class);
+  private static final long OPERATION_TIMEOUT = 30 * 60 * 1000;
+
+  @NotNull
+  private final Map<String, TrackedOperation> operations = new ConcurrentHashMap<String, TrackedOperation>();
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzurePublishSettings publishSettings;
+  @NotNull
+  private final String subscriptionId;
+
+  public AzureOperationTracker(@NotNull final AzureManagementClientRegistry registry,
+                               @NotNull final AzurePublishSettings settings,
+                               @NotNull final String subscription) {
+    clientRegistry = registry;
+    publishSettings = settings;
+    subscriptionId = subscription;
+  }
+
+  /**
+   * Polls the status of in-flight operations every {@code interval} milliseconds on the given executor.
+   */
+  public void schedule(@NotNull final ScheduledExecutorService executor, final long interval) {
+    executor.scheduleWithFixedDelay(ExceptionUtil.catchAll("Track Azure operations", this), interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  public void track(@NotNull final String requestId, @NotNull final String description, @NotNull final AzureOperationCallback callback) {
+    LOG.debug("Tracking Azure operation " + requestId + ": " + description);
+    operations.put(requestId, new TrackedOperation(description, callback));
+  }
+
+  /**
+   * @return number of operations submitted to Azure that have not completed yet
+   */
+  public int getInFlightCount() {
+    return operations.size();
+  }
+
+  public void run() {
+    // checked before polling, so operations time out even while their status can't be read
+    expireOperations(System.currentTimeMillis());
+    if (operations.isEmpty()) return;
+
+    try {
+      Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<Void, Exception>() {
+        public Void apply() throws Exception {
+          poll();
+          return null;
+        }
+      });
+    } catch (Exception e) {
+      LOG.warn("Failed to check status of Azure operations in subscription " + subscriptionId + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Stops following the operations still in flight. They complete in Azure regardless, e.g. the shutdowns sent as the
+   * cloud client goes away, so their callbacks are dropped rather than failed.
+   */
+  public void dispose() {
+    if (operations.isEmpty()) return;
+
+    final List<String> descriptions = new ArrayList<String>();
+    for (TrackedOperation operation : operations.values()) {
+      descriptions.add(operation.description);
+    }
+    operations.clear();
+    LOG.info("No longer following " + descriptions.size() + " Azure operations in subscription " + subscriptionId + ": " + descriptions);
+  }
+
+  private void poll() throws Exception {
+    final ComputeManagementClient client = clientRegistry.getClient(publishSettings, subscriptionId);
+
+    final AzureRequestGovernor governor = clientRegistry.getGovernor(subscriptionId);
+
+    // request the status of all operations at once
+    final Map<String, Future<OperationStatusResponse>> statuses = new HashMap<String, Future<OperationStatusResponse>>();
+    for (final String requestId : operations.keySet()) {
+      statuses.put(requestId, governor.submit("Get status of operation " + requestId, new FuncThrow<OperationStatusResponse, Exception>() {
+        public OperationStatusResponse apply() throws Exception {
+          return client.getOperationStatus(requestId);
+        }
+      }));
+    }
+
+    final long now = System.currentTimeMillis();
+    for (Map.Entry<String, Future<OperationStatusResponse>> status : statuses.entrySet()) {
+      final String requestId = status.getKey();
+      final TrackedOperation operation = operations.get(requestId);
+      if (operation == null) continue;
+
+      final OperationStatusResponse response;
+      try {
+        response = status.getValue().get();
+      } catch (ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof ServiceException && ((ServiceException)cause).getHttpStatusCode() == 404) {
+          complete(requestId, new Exception("Azure does not know operation " + requestId + ": " + operation.description));
+        } else {
+          LOG.debug("Failed to check status of Azure operation " + requestId + ", will retry: " + e.getMessage());
+        }
+        continue;
+      }
+
+      if (response.getStatus() == OperationStatus.Succeeded) {
+        LOG.debug("Azure operation " + requestId + " succeeded in " + (now - operation.startTime) + " ms: " + operation.description);
+        complete(requestId, null);
+      } else if (response.getStatus() == OperationStatus.Failed) {
+        final String message = response.getError() != null ? response.getError().getMessage() : "unknown error";
+        complete(requestId, new Exception(operation.description + " failed: " + message));
+      }
+    }
+  }
+
+  private void expireOperations(final long now) {
+    for (Map.Entry<String, TrackedOperation> operation : operations.entrySet()) {
+      if (now - operation.getValue().startTime > OPERATION_TIMEOUT) {
+        complete(operation.getKey(), new Exception(operation.getValue().description + " did not complete in " + OPERATION_TIMEOUT / 1000 + " seconds"));
+      }
+    }
+  }
+
+  private void complete(@NotNull final String requestId, @Nullable final Exception error) {
+    final TrackedOperation operation = operations.remove(requestId);
+    if (operation == null) return;
+
+    try {
+      if (error == null) {
+        operation.callback.operationSucceeded();
+      } else {
+        operation.callback.operationFailed(error);
+      }
+    } catch (Throwable t) {
+      LOG.error("Failed to notify about completion of Azure operation " + requestId + ": " + t.getMessage(), t);
+    }
+  }
+
+  private static class TrackedOperation {
+    @NotNull
+    private final String description;
+    @NotNull
+    private final AzureOperationCallback callback;
+    private final long startTime = System.currentTimeMillis();
+
+    private TrackedOperation(@NotNull final String description, @NotNull final AzureOperationCallback callback) {
+      this.description = description;
+      this.callback = callback;
+    }
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceRequestContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseFilter;
+import com.microsoft.windowsazure.exception.ServiceException;
+import jetbrains.buildServer.util.FuncThrow;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards all Management API calls of one subscription: limits the request rate with a token bucket,
+ * retries throttled and transient failures with jittered exponential backoff honoring Retry-After,
+ * and stops sending requests for a while when Azure keeps failing.
+ */
+public class AzureRequestGovernor {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureRequestGovernor.class);
+  private static final double REQUESTS_PER_SECOND = 10;
+  private static final int BURST_SIZE = 20;
+  private static final int MAX_RETRIES = 5;
+  private static final long BASE_RETRY_DELAY = 1000;
+  private static final long MAX_RETRY_DELAY = 60 * 1000;
+  private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+  private static final long CIRCUIT_OPEN_DURATION = 60 * 1000;
+
+  @NotNull
+  private final Random random = new Random();
+  @NotNull
+  private final ExecutorService asyncExecutor;
+  @NotNull
+  private final String subscriptionId;
+  private final double requestsPerSecond;
+  private final int burstSize;
+  private final int maxRetries;
+  private final long baseRetryDelay;
+  private final int failureThreshold;
+  private final long openDuration;
+
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+  private volatile long notBefore = 0;
+
+  private int consecutiveFailures = 0;
+  private long circuitOpenUntil = 0;
+  private boolean trialInProgress = false;
+
+  @NotNull
+  private final AtomicLong throttledCalls = new AtomicLong();
+  @NotNull
+  private final AtomicLong retriedCalls = new AtomicLong();
+  @NotNull
+  private final AtomicLong shortCircuitedCalls = new AtomicLong();
+
+  public AzureRequestGovernor(@NotNull final String subscriptionId) {
+    this(subscriptionId, REQUESTS_PER_SECOND, BURST_SIZE, MAX_RETRIES, BASE_RETRY_DELAY, CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_DURATION);
+  }
+
+  public AzureRequestGovernor(@NotNull final String subscriptionId,
+                              final double requestsPerSecond,
+                              final int burstSize,
+                              final int maxRetries,
+                              final long baseRetryDelay,
+                              final int failureThreshold,
+                              final long openDuration) {
+    this.subscriptionId = subscriptionId;
+    this.requestsPerSecond = requestsPerSecond;
+    this.burstSize = burstSize;
+    this.maxRetries = maxRetries;
+    this.baseRetryDelay = baseRetryDelay;
+    this.failureThreshold = failureThreshold;
+    this.openDuration = openDuration;
+    tokens = burstSize;
+    asyncExecutor = Executors.newCachedThreadPool(new NamedDeamonThreadFactory("azure-api-" + subscriptionId));
+  }
+
+  /**
+   * Performs the call, waiting for the rate limit and retrying it while Azure reports throttling or transient errors.
+   *
+   * @throws CircuitOpenException if Azure has been failing recently and the call was not attempted
+   */
+  public <T> T execute(@NotNull final String description, @NotNull final FuncThrow<T, Exception> call) throws Exception {
+    return execute(description, call, true);
+  }
+
+  /**
+   * @param retryConflicts false for calls whose conflict is a final answer rather than a busy deployment, e.g. creating
+   *                       a resource that already exists
+   */
+  public <T> T execute(@NotNull final String description, @NotNull final FuncThrow<T, Exception> call, final boolean retryConflicts) throws Exception {
+    int attempt = 0;
+    while (true) {
+      enterCircuit(description);
+      acquire();
+
+      final T result;
+      try {
+        result = call.apply();
+      } catch (Exception e) {
+        final Exception cause = unwrap(e);
+        if (isThrottled(cause)) {
+          throttledCalls.incrementAndGet();
+        }
+        // a rejected request, a conflicting operation on the deployment or throttling doesn't mean Azure is unhealthy,
+        // throttled calls just wait for Retry-After
+        leaveCircuit(!isTransient(cause) || isConflict(cause) || isThrottled(cause));
+        if (!isTransient(cause) || (!retryConflicts && isConflict(cause))) {
+          throw e;
+        }
+
+        if (attempt >= maxRetries) {
+          LOG.warn(description + " failed after " + (attempt + 1) + " attempts: " + cause.getMessage());
+          throw e;
+        }
+
+        final long delay = getRetryDelay(attempt++);
+        retriedCalls.incrementAndGet();
+        LOG.info(description + " failed (" + cause.getMessage() + "), retrying in " + delay + " ms");
+        Thread.sleep(delay);
+        continue;
+      }
+
+      leaveCircuit(true);
+      return result;
+    }
+  }
+
+  /**
+   * Performs the call like {@link #execute} on a separate thread, so that many calls can be sent at once.
+   */
+  @NotNull
+  public <T> Future<T> submit(@NotNull final String description, @NotNull final FuncThrow<T, Exception> call) {
+    return asyncExecutor.submit(new Callable<T>() {
+      public T call() throws Exception {
+        return execute(description, call);
+      }
+    });
+  }
+
+  /**
+   * @return filter that picks up Retry-After of throttled responses, to be installed on the management client
+   */
+  @NotNull
+  public ServiceResponseFilter getResponseFilter() {
+    return new ServiceResponseFilter() {
+      public void filter(final ServiceRequestContext request, final ServiceResponseContext response) {
+        if (response.getStatus() != 429 && response.getStatus() != 503) return;
+
+        final long retryAfter = parseRetryAfter(response.getHeader("Retry-After"));
+        if (retryAfter > 0) {
+          notBefore = Math.max(notBefore, System.currentTimeMillis() + retryAfter);
+        }
+      }
+    };
+  }
+
+  public long getThrottledCalls() {
+    return throttledCalls.get();
+  }
+
+  public long getRetriedCalls() {
+    return retriedCalls.get();
+  }
+
+  public long getShortCircuitedCalls() {
+    return shortCircuitedCalls.get();
+  }
+
+  public synchronized boolean isCircuitOpen() {
+    return System.currentTimeMillis() < circuitOpenUntil;
+  }
+
+  public void dispose() {
+    asyncExecutor.shutdownNow();
+  }
+
+  private synchronized void enterCircuit(@NotNull final String description) throws CircuitOpenException {
+    final long now = System.currentTimeMillis();
+    if (now < circuitOpenUntil || (circuitOpenUntil > 0 && trialInProgress)) {
+      shortCircuitedCalls.incrementAndGet();
+      throw new CircuitOpenException(description + " was not attempted, the Azure Management API for subscription " + subscriptionId
+              + " is failing, requests are paused for " + Math.max(0, circuitOpenUntil - now) / 1000 + " more seconds");
+    }
+    if (circuitOpenUntil > 0) {
+      // the pause is over, let a single call find out whether Azure has recovered
+      trialInProgress = true;
+    }
+  }
+
+  private synchronized void leaveCircuit(final boolean healthy) {
+    trialInProgress = false;
+    if (healthy) {
+      if (circuitOpenUntil > 0) {
+        LOG.info("Azure Management API for subscription " + subscriptionId + " has recovered, resuming requests");
+      }
+      consecutiveFailures = 0;
+      circuitOpenUntil = 0;
+      return;
+    }
+
+    consecutiveFailures++;
+    if (consecutiveFailures >= failureThreshold || circuitOpenUntil > 0) {
+      LOG.warn("Azure Management API for subscription " + subscriptionId + " failed " + consecutiveFailures
+              + " times in a row, pausing requests for " + openDuration / 1000 + " seconds");
+      circuitOpenUntil = System.currentTimeMillis() + openDuration;
+    }
+  }
+
+  private void acquire() throws InterruptedException {
+    final long retryAfter = notBefore - System.currentTimeMillis();
+    if (retryAfter > 0) {
+      Thread.sleep(retryAfter);
+    }
+
+    while (true) {
+      final long wait;
+      synchronized (this) {
+        final long now = System.nanoTime();
+        tokens = Math.min(burstSize, tokens + (now - lastRefill) * requestsPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+        if (tokens >= 1) {
+          tokens--;
+          return;
+        }
+        wait = (long)Math.ceil((1 - tokens) * 1000 / requestsPerSecond);
+      }
+      Thread.sleep(wait);
+    }
+  }
+
+  private long getRetryDelay(final int attempt) {
+    final long backoff = Math.min(MAX_RETRY_DELAY, baseRetryDelay << Math.min(attempt, 16));
+    final long jittered;
+    synchronized (random) {
+      // jitter keeps retries of concurrent calls from arriving together
+      jittered = backoff / 2 + (long)(random.nextDouble() * backoff / 2);
+    }
+    return Math.max(jittered, notBefore - System.currentTimeMillis());
+  }
+
+  static long parseRetryAfter(@Nullable final String value) {
+    if (value == null) return 0;
+    try {
+      return Long.parseLong(value.trim()) * 1000;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  @NotNull
+  private static Exception unwrap(@NotNull final Exception e) {
+    Throwable cause = e;
+    while (cause instanceof ExecutionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    return cause instanceof Exception ? (Exception)cause : e;
+  }
+
+  static boolean isThrottled(@NotNull final Exception e) {
+    if (!(e instanceof ServiceException)) return false;
+    final int status = ((ServiceException)e).getHttpStatusCode();
+    return status == 429 || status == 503;
+  }
+
+  static boolean isTransient(@NotNull final Exception e) {
+    if (e instanceof IOException) return true;
+    if (!(e instanceof ServiceException)) return false;
+
+    final int status = ((ServiceException)e).getHttpStatusCode();
+    return status == 429 || status == 500 || status == 502 || status == 503 || status == 504 || isConflict(e);
+  }
+
+  /**
+   * Azure runs one operation per deployment at a time and rejects others while it is busy.
+   */
+  static boolean isConflict(@NotNull final Exception e) {
+    return e instanceof ServiceException
+            && ((ServiceException)e).getHttpStatusCode() == 409
+            && "ConflictError".equalsIgnoreCase(((ServiceException)e).getErrorCode());
+  }
+
+  /**
+   * Thrown instead of calling Azure while the circuit breaker is open.
+   */
+  public static class CircuitOpenException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException(@NotNull final String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Where a virtual machine role lives in the subscription: hosted service, deployment and role instance.
+ */
+public class AzureRoleLocation {
+  @NotNull
+  private final String serviceName;
+  @NotNull
+  private final String deploymentName;
+  @NotNull
+  private final String instanceName;
+
+  public AzureRoleLocation(@NotNull final String serviceName, @NotNull final String deploymentName, @NotNull final String instanceName) {
+    this.serviceName = serviceName;
+    this.deploymentName = deploymentName;
+    this.instanceName = instanceName;
+  }
+
+  @NotNull
+  public String getServiceName() {
+    return serviceName;
+  }
+
+  @NotNull
+  public String getDeploymentName() {
+    return deploymentName;
+  }
+
+  @NotNull
+  public String getInstanceName() {
+    return instanceName;
+  }
+
+  @Override
+  public String toString() {
+    return serviceName + "/" + deploymentName + "/" + instanceName;
+  }
+}
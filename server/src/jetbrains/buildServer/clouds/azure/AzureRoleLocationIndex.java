@@ -0,0 +1,212 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
+import com.microsoft.windowsazure.management.compute.HostedServiceOperations;
+import com.microsoft.windowsazure.management.compute.models.*;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.util.FuncThrow;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Maps virtual machine role names to their {@link AzureRoleLocation}, so start/stop don't have to scan the subscription.
+ */
+public class AzureRoleLocationIndex {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureRoleLocationIndex.class);
+  private static final long MISS_EXPIRATION = 60 * 1000;
+
+  @NotNull
+  private final Map<String, AzureRoleLocation> locations = new ConcurrentHashMap<String, AzureRoleLocation>();
+  /**
+   * Roles a scan has not found, by the time until which they are not looked for again.
+   */
+  @NotNull
+  private final Map<String, Long> misses = new ConcurrentHashMap<String, Long>();
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzurePublishSettings publishSettings;
+  @NotNull
+  private final String subscriptionId;
+
+  public AzureRoleLocationIndex(@NotNull final AzureManagementClientRegistry registry,
+                                @NotNull final AzurePublishSettings settings,
+                                @NotNull final String subscription) {
+    clientRegistry = registry;
+    publishSettings = settings;
+    subscriptionId = subscription;
+  }
+
+  /**
+   * Scans the subscription once and records the location of every given role.
+   */
+  public void build(@NotNull final Collection<String> roleNames) throws Exception {
+    final Set<String> missing = new HashSet<String>();
+    for (String roleName : roleNames) {
+      if (!locations.containsKey(key(roleName))) {
+        missing.add(key(roleName));
+      }
+    }
+    if (missing.isEmpty()) return;
+
+    final Map<String, AzureRoleLocation> found = scan(missing);
+    locations.putAll(found);
+    recordMisses(missing, found);
+    LOG.info("Resolved locations of " + found.size() + " of " + missing.size() + " virtual machines in subscription " + subscriptionId);
+  }
+
+  /**
+   * Returns the known location of the role, resolving it against Azure when it is not indexed yet. A role the last
+   * resolution has not found is not looked for again for a minute, so a missing VM doesn't scan the subscription on every call.
+   */
+  @Nullable
+  public AzureRoleLocation getLocation(@NotNull final String roleName) throws Exception {
+    final String roleKey = key(roleName);
+    final AzureRoleLocation location = locations.get(roleKey);
+    if (location != null) return location;
+
+    final Long missedUntil = misses.get(roleKey);
+    if (missedUntil != null && missedUntil > System.currentTimeMillis()) return null;
+
+    // scanned without holding a lock, lookups of indexed roles and updates from the status sweep go on meanwhile
+    final Set<String> roleKeys = Collections.singleton(roleKey);
+    final Map<String, AzureRoleLocation> found = scan(roleKeys);
+    locations.putAll(found);
+    recordMisses(roleKeys, found);
+    return found.get(roleKey);
+  }
+
+  /**
+   * @return location of the role if it is indexed, without resolving it against Azure
+   */
+  @Nullable
+  public AzureRoleLocation getIndexedLocation(@NotNull final String roleName) {
+    return locations.get(key(roleName));
+  }
+
+  /**
+   * Drops the entry for a role Azure no longer reports at its indexed location. The next lookup re-resolves it.
+   */
+  public void invalidate(@NotNull final String roleName) {
+    final AzureRoleLocation location = locations.remove(key(roleName));
+    if (location != null) {
+      LOG.info("Virtual machine " + roleName + " is no longer at " + location + ", its location will be re-resolved");
+    }
+  }
+
+  /**
+   * Records locations observed elsewhere, e.g. by a status sweep over the whole subscription.
+   */
+  void update(@NotNull final Map<String, AzureRoleLocation> observed) {
+    locations.putAll(observed);
+    misses.keySet().removeAll(observed.keySet());
+  }
+
+  private void recordMisses(@NotNull final Set<String> roleKeys, @NotNull final Map<String, AzureRoleLocation> found) {
+    final long missedUntil = System.currentTimeMillis() + MISS_EXPIRATION;
+    for (String roleKey : roleKeys) {
+      if (found.containsKey(roleKey)) {
+        misses.remove(roleKey);
+      } else {
+        misses.put(roleKey, missedUntil);
+      }
+    }
+  }
+
+  @NotNull
+  private Map<String, AzureRoleLocation> scan(@NotNull final Set<String> roleKeys) throws Exception {
+    final Map<String, Future<HostedServiceGetDetailedResponse>> serviceDetails = requestServiceDetails(
+            clientRegistry.getClient(publishSettings, subscriptionId), clientRegistry.getGovernor(subscriptionId), clientRegistry.getMetrics(subscriptionId));
+
+    final Map<String, AzureRoleLocation> result = new HashMap<String, AzureRoleLocation>();
+    try {
+      for (Map.Entry<String, Future<HostedServiceGetDetailedResponse>> details : serviceDetails.entrySet()) {
+        collectLocations(details.getKey(), details.getValue().get(), roleKeys, result);
+        if (result.size() == roleKeys.size()) break;
+      }
+    } finally {
+      for (Future<HostedServiceGetDetailedResponse> details : serviceDetails.values()) {
+        details.cancel(true);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Requests details of all hosted services of the subscription at once.
+   *
+   * @return pending details by hosted service name
+   */
+  @NotNull
+  static Map<String, Future<HostedServiceGetDetailedResponse>> requestServiceDetails(@NotNull final ComputeManagementClient client,
+                                                                                   @NotNull final AzureRequestGovernor governor,
+                                                                                   @NotNull final AzureMetrics metrics) throws Exception {
+    final HostedServiceOperations hostedServicesOperations = client.getHostedServicesOperations();
+    final HostedServiceListResponse services = governor.execute("List hosted services", metrics.timed(AzureMetrics.Phase.LIST_SERVICES, null,
+            new FuncThrow<HostedServiceListResponse, Exception>() {
+      public HostedServiceListResponse apply() throws Exception {
+        return hostedServicesOperations.list();
+      }
+    }));
+
+    final Map<String, Future<HostedServiceGetDetailedResponse>> serviceDetails = new LinkedHashMap<String, Future<HostedServiceGetDetailedResponse>>();
+    for (HostedServiceListResponse.HostedService service : services.getHostedServices()) {
+      final String serviceName = service.getServiceName();
+      serviceDetails.put(serviceName, governor.submit("Get details of hosted service " + serviceName, metrics.timed(AzureMetrics.Phase.GET_DETAILS, null,
+              new FuncThrow<HostedServiceGetDetailedResponse, Exception>() {
+        public HostedServiceGetDetailedResponse apply() throws Exception {
+          return hostedServicesOperations.getDetailed(serviceName);
+        }
+      })));
+    }
+    return serviceDetails;
+  }
+
+  static void collectLocations(@NotNull final String serviceName,
+                               @NotNull final HostedServiceGetDetailedResponse serviceDetails,
+                               @NotNull final Set<String> roleKeys,
+                               @NotNull final Map<String, AzureRoleLocation> result) {
+    for (HostedServiceGetDetailedResponse.Deployment deployment : serviceDetails.getDeployments()) {
+      final Set<String> vmRoles = new HashSet<String>();
+      for (Role role : deployment.getRoles()) {
+        if (role.getRoleType() != null && role.getRoleType().equalsIgnoreCase(VirtualMachineRoleType.PersistentVMRole.toString())) {
+          vmRoles.add(key(role.getRoleName()));
+        }
+      }
+
+      for (RoleInstance instance : deployment.getRoleInstances()) {
+        final String roleKey = key(instance.getRoleName());
+        if (vmRoles.contains(roleKey) && roleKeys.contains(roleKey)) {
+          result.put(roleKey, new AzureRoleLocation(serviceName, deployment.getName(), instance.getInstanceName()));
+        }
+      }
+    }
+  }
+
+  @NotNull
+  static String key(@NotNull final String roleName) {
+    return roleName.toLowerCase(Locale.ENGLISH);
+  }
+}
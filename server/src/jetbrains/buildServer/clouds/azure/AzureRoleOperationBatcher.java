@@ -0,0 +1,318 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.core.OperationResponse;
+import com.microsoft.windowsazure.management.compute.VirtualMachineOperations;
+import com.microsoft.windowsazure.management.compute.models.PostShutdownAction;
+import com.microsoft.windowsazure.management.compute.models.VirtualMachineShutdownRolesParameters;
+import com.microsoft.windowsazure.management.compute.models.VirtualMachineStartRolesParameters;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.util.ExceptionUtil;
+import jetbrains.buildServer.util.FuncThrow;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import jetbrains.buildServer.util.Util;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects start and shutdown requests for roles of the same deployment over a short window
+ * and issues each group as a single multi-role Management API operation, which is then followed by {@link AzureOperationTracker}.
+ * Azure runs one operation per deployment at a time, so a group is held back while its deployment is busy.
+ */
+public class AzureRoleOperationBatcher {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureRoleOperationBatcher.class);
+  private static final int BATCH_THREADS = 4;
+
+  @NotNull
+  private final Map<String, Batch> pending = new HashMap<String, Batch>();
+  @NotNull
+  private final Set<String> busyDeployments = new HashSet<String>();
+  @NotNull
+  private final ThreadPoolExecutor batchExecutor;
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzurePublishSettings publishSettings;
+  @NotNull
+  private final String subscriptionId;
+  @NotNull
+  private final AzureOperationTracker operationTracker;
+  @NotNull
+  private final ScheduledExecutorService executorService;
+  private final long batchWindow;
+
+  public AzureRoleOperationBatcher(@NotNull final AzureManagementClientRegistry registry,
+                                   @NotNull final AzurePublishSettings settings,
+                                   @NotNull final String subscription,
+                                   @NotNull final AzureOperationTracker tracker,
+                                   @NotNull final ScheduledExecutorService executor,
+                                   final long window) {
+    clientRegistry = registry;
+    publishSettings = settings;
+    subscriptionId = subscription;
+    operationTracker = tracker;
+    executorService = executor;
+    batchWindow = window;
+    // a group waiting out throttling holds its thread, further groups queue up rather than adding threads
+    batchExecutor = new ThreadPoolExecutor(BATCH_THREADS, BATCH_THREADS, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedDeamonThreadFactory("azure-role-batch"));
+    batchExecutor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * @param sent run once Azure has accepted the operation of the group, which may be a while when the deployment is busy
+   *             or Azure throttles requests
+   */
+  public void start(@NotNull final AzureRoleLocation location,
+                    @NotNull final String roleName,
+                    @NotNull final Runnable sent,
+                    @NotNull final AzureOperationCallback callback) {
+    enqueue(location, roleName, null, sent, callback);
+  }
+
+  /**
+   * @param sent run once Azure has accepted the operation of the group
+   */
+  public void shutdown(@NotNull final AzureRoleLocation location,
+                       @NotNull final String roleName,
+                       @NotNull final PostShutdownAction action,
+                       @NotNull final Runnable sent,
+                       @NotNull final AzureOperationCallback callback) {
+    enqueue(location, roleName, action, sent, callback);
+  }
+
+  /**
+   * Sends the groups still collecting right away, without waiting for busy deployments, and waits at most the given time
+   * for them to reach Azure. Operations sent are no longer followed once the tracker is disposed, they complete in Azure regardless.
+   */
+  public void dispose(final long timeoutMillis) {
+    final List<Batch> batches;
+    synchronized (pending) {
+      batches = new ArrayList<Batch>(pending.values());
+      pending.clear();
+    }
+    for (Batch batch : batches) {
+      send(batch);
+    }
+
+    batchExecutor.shutdown();
+    try {
+      if (!batchExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Azure role operations were not sent in " + timeoutMillis + " ms, giving up on them");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void enqueue(@NotNull final AzureRoleLocation location,
+                       @NotNull final String roleName,
+                       @Nullable final PostShutdownAction action,
+                       @NotNull final Runnable sent,
+                       @NotNull final AzureOperationCallback callback) {
+    final String key = getDeploymentKey(location) + "|" + (action == null ? "Start" : action.toString());
+    synchronized (pending) {
+      Batch batch = pending.get(key);
+      if (batch == null) {
+        batch = new Batch(location.getServiceName(), location.getDeploymentName(), action);
+        pending.put(key, batch);
+        scheduleFlush(key);
+      }
+      batch.roles.add(roleName);
+      batch.sentListeners.add(sent);
+      batch.callbacks.add(callback);
+    }
+  }
+
+  private void scheduleFlush(@NotNull final String key) {
+    executorService.schedule(ExceptionUtil.catchAll("Flush Azure role operations: " + key, new Runnable() {
+      public void run() {
+        flush(key);
+      }
+    }), batchWindow, TimeUnit.MILLISECONDS);
+  }
+
+  private void flush(@NotNull final String key) {
+    final Batch batch;
+    synchronized (pending) {
+      batch = pending.get(key);
+      if (batch == null) return;
+
+      if (busyDeployments.contains(batch.getDeploymentKey())) {
+        // keep collecting until the operation already running on this deployment completes
+        scheduleFlush(key);
+        return;
+      }
+
+      pending.remove(key);
+      busyDeployments.add(batch.getDeploymentKey());
+    }
+
+    send(batch);
+  }
+
+  private void send(@NotNull final Batch batch) {
+    final Runnable operation = new Runnable() {
+      public void run() {
+        final String requestId;
+        try {
+          requestId = submit(batch);
+        } catch (Exception e) {
+          complete(batch, e);
+          return;
+        }
+
+        batch.sent();
+        operationTracker.track(requestId, batch.getDescription(), new AzureOperationCallback() {
+          public void operationSucceeded() {
+            complete(batch, null);
+          }
+
+          public void operationFailed(@NotNull final Exception e) {
+            complete(batch, e);
+          }
+        });
+      }
+    };
+    try {
+      batchExecutor.submit(operation);
+    } catch (RejectedExecutionException e) {
+      complete(batch, new Exception(batch.getDescription() + " was not sent, the cloud client is disposed"));
+    }
+  }
+
+  private void complete(@NotNull final Batch batch, @Nullable final Exception error) {
+    synchronized (pending) {
+      busyDeployments.remove(batch.getDeploymentKey());
+    }
+    batch.complete(error);
+  }
+
+  /**
+   * Sends the operation for the whole group to Azure without waiting for it to complete.
+   *
+   * @return request id of the operation
+   */
+  @NotNull
+  private String submit(@NotNull final Batch batch) throws Exception {
+    final ArrayList<String> roles = new ArrayList<String>(batch.roles);
+    LOG.info(batch.getDescription());
+
+    final OperationResponse response = Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<OperationResponse, Exception>() {
+      public OperationResponse apply() throws Exception {
+        return clientRegistry.getGovernor(subscriptionId).execute(batch.getDescription(), new FuncThrow<OperationResponse, Exception>() {
+          public OperationResponse apply() throws Exception {
+            return sendOperation(batch, roles);
+          }
+        });
+      }
+    });
+
+    if (response == null || response.getRequestId() == null) {
+      throw new Exception("Azure did not return a request id for operation on roles " + roles + " in " + batch.getDeploymentKey());
+    }
+    return response.getRequestId();
+  }
+
+  @NotNull
+  private OperationResponse sendOperation(@NotNull final Batch batch, @NotNull final ArrayList<String> roles) throws Exception {
+    final VirtualMachineOperations operations = clientRegistry.getClient(publishSettings, subscriptionId).getVirtualMachinesOperations();
+    if (batch.action == null) {
+      final VirtualMachineStartRolesParameters parameters = new VirtualMachineStartRolesParameters();
+      parameters.setRoles(roles);
+      return operations.beginStartingRoles(batch.serviceName, batch.deploymentName, parameters);
+    }
+
+    final VirtualMachineShutdownRolesParameters parameters = new VirtualMachineShutdownRolesParameters();
+    parameters.setRoles(roles);
+    parameters.setPostShutdownAction(batch.action);
+    return operations.beginShuttingDownRoles(batch.serviceName, batch.deploymentName, parameters);
+  }
+
+  @NotNull
+  private static String getDeploymentKey(@NotNull final AzureRoleLocation location) {
+    return location.getServiceName() + "/" + location.getDeploymentName();
+  }
+
+  /**
+   * A group of roles of one deployment that is started or shut down with a single operation.
+   */
+  private static class Batch {
+    @NotNull
+    private final String serviceName;
+    @NotNull
+    private final String deploymentName;
+    @Nullable
+    private final PostShutdownAction action;
+    @NotNull
+    private final Set<String> roles = new LinkedHashSet<String>();
+    @NotNull
+    private final List<Runnable> sentListeners = new ArrayList<Runnable>();
+    @NotNull
+    private final List<AzureOperationCallback> callbacks = new ArrayList<AzureOperationCallback>();
+
+    private Batch(@NotNull final String serviceName, @NotNull final String deploymentName, @Nullable final PostShutdownAction action) {
+      this.serviceName = serviceName;
+      this.deploymentName = deploymentName;
+      this.action = action;
+    }
+
+    @NotNull
+    private String getDeploymentKey() {
+      return serviceName + "/" + deploymentName;
+    }
+
+    @NotNull
+    private String getDescription() {
+      return (action == null ? "Starting " : "Shutting down ") + roles.size() + " roles in " + getDeploymentKey() + ": " + roles;
+    }
+
+    private void sent() {
+      for (Runnable listener : sentListeners) {
+        try {
+          listener.run();
+        } catch (Throwable t) {
+          LOG.error("Failed to notify about operation sent to " + getDeploymentKey() + ": " + t.getMessage(), t);
+        }
+      }
+    }
+
+    private void complete(@Nullable final Exception error) {
+      for (AzureOperationCallback callback : callbacks) {
+        try {
+          if (error == null) {
+            callback.operationSucceeded();
+          } else {
+            callback.operationFailed(error);
+          }
+        } catch (Throwable t) {
+          LOG.error("Failed to notify about completed operation in " + getDeploymentKey() + ": " + t.getMessage(), t);
+        }
+      }
+    }
+  }
+}
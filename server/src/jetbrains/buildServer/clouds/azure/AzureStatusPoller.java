@@ -0,0 +1,177 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.management.compute.models.*;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.util.FuncThrow;
+import jetbrains.buildServer.util.Util;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Reconciles the status of all instances of a cloud profile with Azure, using one hosted service sweep per run.
+ */
+public class AzureStatusPoller implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureStatusPoller.class);
+
+  @NotNull
+  private final Collection<AzureCloudImage> images;
+  @NotNull
+  private final AzureManagementClientRegistry clientRegistry;
+  @NotNull
+  private final AzureRoleLocationIndex locationIndex;
+  @NotNull
+  private final AzurePublishSettings publishSettings;
+  @NotNull
+  private final String subscriptionId;
+  private volatile long lastSweepDuration = -1;
+
+  public AzureStatusPoller(@NotNull final Collection<AzureCloudImage> images,
+                           @NotNull final AzureManagementClientRegistry registry,
+                           @NotNull final AzureRoleLocationIndex index,
+                           @NotNull final AzurePublishSettings settings,
+                           @NotNull final String subscription) {
+    this.images = images;
+    clientRegistry = registry;
+    locationIndex = index;
+    publishSettings = settings;
+    subscriptionId = subscription;
+  }
+
+  /**
+   * @return duration of the last completed sweep in milliseconds, or -1 if no sweep has completed yet
+   */
+  public long getLastSweepDuration() {
+    return lastSweepDuration;
+  }
+
+  public synchronized void run() {
+    try {
+      Util.doUnderContextClassLoader(getClass().getClassLoader(), new FuncThrow<Void, Exception>() {
+        public Void apply() throws Exception {
+          sweep();
+          return null;
+        }
+      });
+    } catch (Exception e) {
+      LOG.warn("Failed to refresh status of Azure instances in subscription " + subscriptionId + ": " + e.getMessage(), e);
+    }
+  }
+
+  private void sweep() throws Exception {
+    final long sweepStart = System.currentTimeMillis();
+
+    final Map<String, AzureCloudInstance> instances = new HashMap<String, AzureCloudInstance>();
+    for (AzureCloudImage image : images) {
+      for (AzureCloudInstance instance : image.getInstances()) {
+        instances.put(AzureRoleLocationIndex.key(instance.getInstanceId()), instance);
+      }
+    }
+    if (instances.isEmpty()) return;
+
+    final Map<String, Future<HostedServiceGetDetailedResponse>> serviceDetails = AzureRoleLocationIndex.requestServiceDetails(
+            clientRegistry.getClient(publishSettings, subscriptionId), clientRegistry.getGovernor(subscriptionId), clientRegistry.getMetrics(subscriptionId));
+
+    final Map<String, AzureRoleLocation> locations = new HashMap<String, AzureRoleLocation>();
+    final Map<String, String> statuses = new HashMap<String, String>();
+    int failedServices = 0;
+    try {
+      for (Map.Entry<String, Future<HostedServiceGetDetailedResponse>> details : serviceDetails.entrySet()) {
+        final HostedServiceGetDetailedResponse response;
+        try {
+          response = details.getValue().get();
+        } catch (ExecutionException e) {
+          // instances of this service keep their status until the next sweep, the others are still refreshed
+          LOG.warn("Failed to get details of hosted service " + details.getKey() + " in subscription " + subscriptionId + ": " + e.getCause().getMessage());
+          failedServices++;
+          continue;
+        }
+        AzureRoleLocationIndex.collectLocations(details.getKey(), response, instances.keySet(), locations);
+
+        for (HostedServiceGetDetailedResponse.Deployment deployment : response.getDeployments()) {
+          for (RoleInstance roleInstance : deployment.getRoleInstances()) {
+            final String roleKey = AzureRoleLocationIndex.key(roleInstance.getRoleName());
+            if (locations.containsKey(roleKey)) {
+              statuses.put(roleKey, roleInstance.getInstanceStatus());
+            }
+          }
+        }
+      }
+    } finally {
+      // nothing is left running when the sweep is aborted
+      for (Future<HostedServiceGetDetailedResponse> details : serviceDetails.values()) {
+        details.cancel(true);
+      }
+    }
+    locationIndex.update(locations);
+
+    int changed = 0;
+    for (Map.Entry<String, String> status : statuses.entrySet()) {
+      final InstanceStatus instanceStatus = toInstanceStatus(status.getValue());
+      final boolean provisioned = RoleInstanceStatus.STOPPEDVM.equalsIgnoreCase(status.getValue());
+      if (instanceStatus != null && instances.get(status.getKey()).updateStatusFromAzure(instanceStatus, provisioned, status.getValue())) {
+        changed++;
+      }
+    }
+
+    lastSweepDuration = System.currentTimeMillis() - sweepStart;
+    LOG.debug("Refreshed status of " + statuses.size() + " Azure instances in subscription " + subscriptionId + " in " + lastSweepDuration + " ms, " + changed + " changed"
+            + (failedServices > 0 ? ", " + failedServices + " hosted services skipped" : ""));
+  }
+
+  @Nullable
+  static InstanceStatus toInstanceStatus(@Nullable final String roleInstanceStatus) {
+    if (roleInstanceStatus == null) return null;
+
+    if (roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.READYROLE)) {
+      return InstanceStatus.RUNNING;
+    }
+    if (roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.STOPPEDVM) || roleInstanceStatus.equalsIgnoreCase(AzureCloudInstance.ROLE_STATUS_STOPPED_DEALLOCATED)) {
+      return InstanceStatus.STOPPED;
+    }
+    if (roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.CREATINGVM)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.STARTINGVM)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.CREATINGROLE)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.STARTINGROLE)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.BUSYROLE)) {
+      return InstanceStatus.STARTING;
+    }
+    if (roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.STOPPINGROLE)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.STOPPINGVM)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.DELETINGVM)) {
+      return InstanceStatus.STOPPING;
+    }
+    if (roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.RESTARTINGROLE)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.CYCLINGROLE)) {
+      return InstanceStatus.RESTARTING;
+    }
+    if (roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.FAILEDSTARTINGROLE)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.FAILEDSTARTINGVM)
+            || roleInstanceStatus.equalsIgnoreCase(RoleInstanceStatus.UNRESPONSIVEROLE)) {
+      return InstanceStatus.ERROR;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.InstanceStatus;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Persists location, status and start time of the instances of a cloud profile, so a client created after a server
+ * restart can use them right away instead of scanning the subscription first. Azure stays the source of truth,
+ * the first status sweep corrects whatever has changed while the server was down.
+ */
+public class AzureTopologySnapshot implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureTopologySnapshot.class);
+  @NotNull
+  private static final String HEADER = "# Azure topology snapshot, version 1";
+  @NotNull
+  private static final String ENCODING = "UTF-8";
+  @NotNull
+  private static final Set<InstanceStatus> RESTORED_STATUSES = EnumSet.of(
+          InstanceStatus.STOPPED, InstanceStatus.STARTING, InstanceStatus.RUNNING, InstanceStatus.STOPPING);
+
+  @NotNull
+  private final File file;
+  @NotNull
+  private final String subscriptionId;
+  @NotNull
+  private final Collection<AzureCloudImage> images;
+  @NotNull
+  private final AzureRoleLocationIndex locationIndex;
+  @NotNull
+  private final Map<String, Entry> entries = new HashMap<String, Entry>();
+  @Nullable
+  private String lastSaved;
+
+  public AzureTopologySnapshot(@NotNull final File file,
+                               @NotNull final String subscription,
+                               @NotNull final Collection<AzureCloudImage> images,
+                               @NotNull final AzureRoleLocationIndex index) {
+    this.file = file;
+    this.images = images;
+    subscriptionId = subscription;
+    locationIndex = index;
+  }
+
+  /**
+   * Reads the snapshot left by the previous client of the profile and hands its locations to the index.
+   * A missing, unreadable or foreign snapshot is ignored.
+   */
+  public synchronized void load() {
+    entries.clear();
+    if (!file.isFile()) return;
+
+    try {
+      final String text = read();
+      final Map<String, AzureRoleLocation> locations = new HashMap<String, AzureRoleLocation>();
+      final Iterator<String> lines = Arrays.asList(text.split("\n")).iterator();
+      if (!lines.hasNext() || !HEADER.equals(lines.next()) || !lines.hasNext() || !("subscription\t" + subscriptionId).equals(lines.next())) {
+        LOG.info("Ignoring Azure topology snapshot " + file + ", it was written for another version or subscription");
+        return;
+      }
+      while (lines.hasNext()) {
+        final String line = lines.next();
+        if (line.length() == 0) continue;
+        final Entry entry = Entry.parse(line);
+        if (entry == null) {
+          LOG.debug("Skipping malformed line of Azure topology snapshot " + file + ": " + line);
+          continue;
+        }
+        entries.put(AzureRoleLocationIndex.key(entry.roleName), entry);
+        if (entry.location != null) {
+          locations.put(AzureRoleLocationIndex.key(entry.roleName), entry.location);
+        }
+      }
+      locationIndex.update(locations);
+      lastSaved = text;
+      LOG.info("Loaded " + entries.size() + " instances and " + locations.size() + " locations from Azure topology snapshot " + file);
+    } catch (IOException e) {
+      LOG.warn("Failed to read Azure topology snapshot " + file + ", locations will be resolved from Azure: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * @return true if the last {@link #load} has found no instances
+   */
+  public synchronized boolean isEmpty() {
+    return entries.isEmpty();
+  }
+
+  /**
+   * @return state of the instance recorded by the previous client, or null if there is none
+   */
+  @Nullable
+  synchronized Entry get(@NotNull final String roleName) {
+    return entries.get(AzureRoleLocationIndex.key(roleName));
+  }
+
+  public void run() {
+    try {
+      save();
+    } catch (IOException e) {
+      LOG.warn("Failed to write Azure topology snapshot " + file + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Writes the current state of the instances, unless nothing has changed since the last write.
+   */
+  public synchronized void save() throws IOException {
+    final StringBuilder text = new StringBuilder(HEADER).append('\n').append("subscription\t").append(subscriptionId).append('\n');
+    for (AzureCloudImage image : images) {
+      // virtual machines of other images are deleted once they stop, there is nothing to come back to
+      if (!image.isReusable()) continue;
+      for (AzureCloudInstance instance : image.getInstances()) {
+        new Entry(instance.getInstanceId(), locationIndex.getIndexedLocation(instance.getInstanceId()), instance.getStatus(),
+                instance.isProvisioned(), instance.getStartedTime().getTime()).format(text);
+        text.append('\n');
+      }
+    }
+    if (text.toString().equals(lastSaved)) return;
+
+    write(text.toString());
+    lastSaved = text.toString();
+  }
+
+  @NotNull
+  private String read() throws IOException {
+    final Reader reader = new InputStreamReader(new FileInputStream(file), ENCODING);
+    try {
+      final StringBuilder text = new StringBuilder();
+      final char[] buffer = new char[4096];
+      int count;
+      while ((count = reader.read(buffer)) >= 0) {
+        text.append(buffer, 0, count);
+      }
+      return text.toString();
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void write(@NotNull final String text) throws IOException {
+    final File directory = file.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create directory " + directory);
+    }
+
+    // a server killed while writing must not leave half a snapshot behind
+    final File temp = new File(directory, file.getName() + ".tmp");
+    final Writer writer = new OutputStreamWriter(new FileOutputStream(temp), ENCODING);
+    try {
+      writer.write(text);
+    } finally {
+      writer.close();
+    }
+    if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+      throw new IOException("Cannot replace " + file + " with " + temp);
+    }
+  }
+
+  /**
+   * State of one instance as recorded in the snapshot.
+   */
+  static class Entry {
+    @NotNull
+    private final String roleName;
+    @Nullable
+    private final AzureRoleLocation location;
+    @NotNull
+    private final InstanceStatus status;
+    private final boolean provisioned;
+    private final long startTime;
+
+    Entry(@NotNull final String roleName, @Nullable final AzureRoleLocation location, @NotNull final InstanceStatus status,
+          final boolean provisioned, final long startTime) {
+      this.roleName = roleName;
+      this.location = location;
+      this.status = status;
+      this.provisioned = provisioned;
+      this.startTime = startTime;
+    }
+
+    /**
+     * @return recorded status if the instance can resume it, otherwise null and the instance starts out stopped
+     */
+    @Nullable
+    InstanceStatus getStatus() {
+      return RESTORED_STATUSES.contains(status) ? status : null;
+    }
+
+    boolean isProvisioned() {
+      return provisioned;
+    }
+
+    @NotNull
+    Date getStartedTime() {
+      return new Date(startTime);
+    }
+
+    private void format(@NotNull final StringBuilder text) {
+      text.append(roleName).append('\t')
+              .append(location == null ? "" : location.getServiceName()).append('\t')
+              .append(location == null ? "" : location.getDeploymentName()).append('\t')
+              .append(location == null ? "" : location.getInstanceName()).append('\t')
+              .append(status.name()).append('\t')
+              .append(provisioned).append('\t')
+              .append(startTime);
+    }
+
+    @Nullable
+    private static Entry parse(@NotNull final String line) {
+      final String[] fields = line.split("\t", -1);
+      if (fields.length != 7 || fields[0].length() == 0) return null;
+      try {
+        final AzureRoleLocation location = fields[1].length() == 0 ? null : new AzureRoleLocation(fields[1], fields[2], fields[3]);
+        return new Entry(fields[0], location, InstanceStatus.valueOf(fields[4]), Boolean.parseBoolean(fields[5]), Long.parseLong(fields[6]));
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import com.microsoft.windowsazure.management.compute.models.RoleInstanceStatus;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recovers instances that have been starting or stopping for longer than expected, e.g. because an Azure call hung
+ * or its outcome got lost. The instance is reconciled with the status Azure reports for its VM: a transition that has
+ * completed in Azure is settled, one that hasn't is retried once and then given up.
+ */
+public class AzureTransitionWatchdog implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureTransitionWatchdog.class);
+
+  @NotNull
+  private final Map<AzureCloudInstance, InstanceStatus> retried = new ConcurrentHashMap<AzureCloudInstance, InstanceStatus>();
+  @NotNull
+  private final Collection<AzureCloudImage> images;
+  private final long startingDeadline;
+  private final long stoppingDeadline;
+  private final long unsentDeadline;
+
+  @NotNull
+  private final AtomicLong recoveries = new AtomicLong();
+  @NotNull
+  private final AtomicLong retries = new AtomicLong();
+  @NotNull
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * @param unsentDeadline time after which a transition whose operation hasn't reached Azure yet is considered stuck,
+   *                       e.g. because it waits behind a hung operation of the instance
+   */
+  public AzureTransitionWatchdog(@NotNull final Collection<AzureCloudImage> images,
+                                 final long startingDeadline,
+                                 final long stoppingDeadline,
+                                 final long unsentDeadline) {
+    this.images = images;
+    this.startingDeadline = startingDeadline;
+    this.stoppingDeadline = stoppingDeadline;
+    this.unsentDeadline = unsentDeadline;
+  }
+
+  public void run() {
+    for (AzureCloudImage image : images) {
+      for (AzureCloudInstance instance : image.getInstances()) {
+        final InstanceStatus status = instance.getStatus();
+        if (status == InstanceStatus.RUNNING || status == InstanceStatus.STOPPED || status == InstanceStatus.ERROR) {
+          // the transition has completed, a later one may be retried again
+          if (status != InstanceStatus.STOPPED || retried.get(instance) == InstanceStatus.STOPPING) {
+            retried.remove(instance);
+          }
+          continue;
+        }
+
+        // counted from when Azure accepted the operation, time spent queued or throttled before doesn't count
+        final long deadline = status == InstanceStatus.STOPPING ? stoppingDeadline : startingDeadline;
+        final long transitionTime = instance.getTransitionTime();
+        if (transitionTime > 0 ? transitionTime < deadline : instance.getStatusTime() < unsentDeadline) continue;
+
+        try {
+          recover(instance, status);
+        } catch (Exception e) {
+          LOG.warn("Failed to read status of stuck AzureCloudInstance " + image.getId() + " - " + instance.getInstanceId()
+                  + " from Azure, will try again: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void recover(@NotNull final AzureCloudInstance instance, @NotNull final InstanceStatus stuckStatus) throws Exception {
+    final String azureStatus = instance.getAzureStatus();
+    final InstanceStatus actual = azureStatus == null ? null : AzureStatusPoller.toInstanceStatus(azureStatus);
+    final boolean stopping = stuckStatus == InstanceStatus.STOPPING;
+    final boolean firstAttempt = !retried.containsKey(instance);
+    if (instance.getStatus() != stuckStatus) return;
+    LOG.warn("AzureCloudInstance " + instance.getImageId() + " - " + instance.getInstanceId() + " has been " + stuckStatus + " for "
+            + instance.getStatusTime() / 1000 + " seconds, Azure reports " + (azureStatus == null ? "no virtual machine" : azureStatus));
+    // an operation still running for the instance is hung, it would hold back the retry and keep the status sweep away
+    instance.abandonOperations();
+
+    if (stopping && (actual == InstanceStatus.STOPPED || azureStatus == null && !instance.isRestartable())) {
+      // the shutdown has completed, only its outcome got lost
+      settle(instance, stuckStatus, InstanceStatus.STOPPED, RoleInstanceStatus.STOPPEDVM.equalsIgnoreCase(azureStatus));
+    } else if (stopping && azureStatus != null && firstAttempt) {
+      retry(instance, stuckStatus);
+      instance.retryStop();
+    } else if (stopping) {
+      fail(instance, stuckStatus, "Azure cloud instance " + instance.getInstanceId() + " did not stop in " + stoppingDeadline / 1000 + " seconds");
+    } else if (actual == InstanceStatus.STOPPED || azureStatus == null && !instance.isRestartable()) {
+      if (firstAttempt && instance.isRestartable()) {
+        retry(instance, stuckStatus);
+        instance.retryStart();
+      } else {
+        // give the slot back, the instance can be started again later on
+        settle(instance, stuckStatus, InstanceStatus.STOPPED, RoleInstanceStatus.STOPPEDVM.equalsIgnoreCase(azureStatus));
+      }
+    } else if (azureStatus != null && firstAttempt && instance.isRestartable()) {
+      // the VM has booted or is still booting but its agent hasn't connected, a restart gives the agent another chance
+      retry(instance, stuckStatus);
+      instance.restart();
+    } else if (azureStatus != null) {
+      LOG.warn("Agent of AzureCloudInstance " + instance.getImageId() + " - " + instance.getInstanceId() + " did not connect, stopping its virtual machine");
+      instance.getMetrics().record(AzureMetrics.Phase.AGENT_CONNECT, instance.getImageId(), instance.getStatusTime(), false);
+      retried.remove(instance);
+      recoveries.incrementAndGet();
+      instance.terminate();
+    } else {
+      fail(instance, stuckStatus, "Virtual machine " + instance.getInstanceId() + " was not found in Azure");
+    }
+  }
+
+  private void settle(@NotNull final AzureCloudInstance instance,
+                      @NotNull final InstanceStatus stuckStatus,
+                      @NotNull final InstanceStatus status,
+                      final boolean provisioned) {
+    if (instance.settleTransition(stuckStatus, status, provisioned)) {
+      LOG.info("Recovered AzureCloudInstance " + instance.getImageId() + " - " + instance.getInstanceId() + " from " + stuckStatus + " to " + status);
+      retried.remove(instance);
+      recoveries.incrementAndGet();
+    }
+  }
+
+  private void retry(@NotNull final AzureCloudInstance instance, @NotNull final InstanceStatus stuckStatus) {
+    LOG.info("Retrying " + stuckStatus + " transition of AzureCloudInstance " + instance.getImageId() + " - " + instance.getInstanceId());
+    retried.put(instance, stuckStatus);
+    retries.incrementAndGet();
+  }
+
+  private void fail(@NotNull final AzureCloudInstance instance, @NotNull final InstanceStatus stuckStatus, @NotNull final String message) {
+    retried.remove(instance);
+    failures.incrementAndGet();
+    if (instance.getStatus() == stuckStatus) {
+      instance.failTransition(message);
+    }
+  }
+
+  /**
+   * @return number of stuck instances returned to a stable status, by settling them or stopping their VM
+   */
+  public long getRecoveries() {
+    return recoveries.get();
+  }
+
+  /**
+   * @return number of stuck transitions that were tried again
+   */
+  public long getRetries() {
+    return retries.get();
+  }
+
+  /**
+   * @return number of stuck transitions given up, leaving their instance failed
+   */
+  public long getFailures() {
+    return failures.get();
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure;
+
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.QuotaException;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
+import jetbrains.buildServer.util.ExceptionUtil;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a number of instances of an image running ahead of demand, so a build can get an agent without waiting for a VM to boot.
+ * An instance leaves the pool once it is handed out by {@link AzureCloudImage#startNewInstance} or its agent starts a build,
+ * the pool is then topped up again on the executor.
+ */
+public class AzureWarmPool implements Runnable {
+  @NotNull
+  private static final Logger LOG = Logger.getLogger(AzureWarmPool.class);
+
+  @NotNull
+  private final Set<AzureCloudInstance> warmInstances = Collections.newSetFromMap(new ConcurrentHashMap<AzureCloudInstance, Boolean>());
+  @NotNull
+  private final AzureCloudImage image;
+  @NotNull
+  private final AzureImageSettings settings;
+  @NotNull
+  private final ScheduledExecutorService executorService;
+
+  public AzureWarmPool(@NotNull final AzureCloudImage image,
+                       @NotNull final AzureImageSettings settings,
+                       @NotNull final ScheduledExecutorService executor) {
+    this.image = image;
+    this.settings = settings;
+    executorService = executor;
+  }
+
+  /**
+   * Checks the pool every {@code interval} milliseconds on the executor and fills it for the first time right away.
+   */
+  public void schedule(final long interval) {
+    executorService.scheduleWithFixedDelay(ExceptionUtil.catchAll("Top up warm pool of image " + image.getName(), this), 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return number of warm instances the schedule asks for right now
+   */
+  public int getTargetSize() {
+    final Calendar now = Calendar.getInstance();
+    final int minuteOfDay = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+    return settings.getWarmSchedule() == null
+            ? settings.getWarmInstances()
+            : settings.getWarmSchedule().getCount(minuteOfDay, settings.getWarmInstances());
+  }
+
+  public int getSize() {
+    return warmInstances.size();
+  }
+
+  public boolean contains(@NotNull final AzureCloudInstance instance) {
+    return warmInstances.contains(instance);
+  }
+
+  public boolean hasReadyInstance() {
+    for (AzureCloudInstance instance : warmInstances) {
+      if (instance.getStatus() == InstanceStatus.RUNNING) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Hands out a running warm instance for the user data of a new instance, the warm instance leaves the pool.
+   */
+  @Nullable
+  public AzureCloudInstance take(@NotNull final CloudInstanceUserData data) {
+    for (AzureCloudInstance instance : warmInstances) {
+      if (instance.getStatus() == InstanceStatus.RUNNING && warmInstances.remove(instance)) {
+        instance.handOut(data);
+        LOG.info("Handing out warm instance " + instance.getInstanceId() + " of image " + image.getName()
+                + ", its agent was started before the request and doesn't get its profile parameters");
+        requestTopUp();
+        return instance;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Called when the agent of the instance has started a build, a warm instance is no longer idle then.
+   */
+  public void instanceTaken(@NotNull final AzureCloudInstance instance) {
+    if (warmInstances.remove(instance)) {
+      LOG.info("Warm instance " + instance.getInstanceId() + " of image " + image.getName() + " started a build");
+      requestTopUp();
+    }
+  }
+
+  public synchronized void run() {
+    for (AzureCloudInstance instance : warmInstances) {
+      final InstanceStatus status = instance.getStatus();
+      if (status == InstanceStatus.STOPPED || status == InstanceStatus.STOPPING || status == InstanceStatus.ERROR) {
+        warmInstances.remove(instance);
+      }
+    }
+
+    final int target = getTargetSize();
+    int started = 0;
+    while (warmInstances.size() < target) {
+      final AzureCloudInstance instance;
+      try {
+        instance = image.startInstance(null);
+      } catch (QuotaException e) {
+        LOG.debug("Warm pool of image " + image.getName() + " has " + warmInstances.size() + " of " + target + " instances: " + e.getMessage());
+        break;
+      }
+      warmInstances.add(instance);
+      started++;
+    }
+
+    int stopped = 0;
+    for (AzureCloudInstance instance : warmInstances) {
+      if (warmInstances.size() <= target) break;
+      if (warmInstances.remove(instance)) {
+        instance.terminate();
+        stopped++;
+      }
+    }
+
+    if (started > 0 || stopped > 0) {
+      LOG.info("Warm pool of image " + image.getName() + ": started " + started + ", stopped " + stopped + ", " + warmInstances.size() + " of " + target + " instances");
+    }
+  }
+
+  private void requestTopUp() {
+    try {
+      executorService.submit(ExceptionUtil.catchAll("Top up warm pool of image " + image.getName(), this));
+    } catch (RejectedExecutionException e) {
+      LOG.debug("Not topping up warm pool of image " + image.getName() + ", the cloud client is disposed");
+    }
+  }
+
+  void dispose() {
+    warmInstances.clear();
+  }
+}
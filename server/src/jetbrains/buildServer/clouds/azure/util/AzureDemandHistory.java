@@ -0,0 +1,144 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import java.util.Arrays;
+
+/* Build queue history of the last day in one-minute buckets: how many builds were queued, how many of them started
+ * on agents of the cloud profile and how long those took. Buckets are reused in a ring, so the history takes a fixed
+ * amount of memory no matter how many builds are recorded.
+ *
+ * Arrivals in an upcoming window are forecast from the recent arrival rate and, once a full day has been recorded,
+ * from the arrivals in the same window a day earlier.
+ */
+public class AzureDemandHistory {
+  private static final long MINUTE = 60 * 1000;
+  private static final int DAY_MINUTES = 24 * 60;
+  private static final int RECENT_MINUTES = 30;
+  private static final int MAX_WINDOW_MINUTES = 60;
+
+  private final int size;
+  private final long[] minutes;
+  private final int[] arrivals;
+  private final int[] starts;
+  private final int[] cloudStarts;
+  private final int[] cloudFinishes;
+  private final long[] cloudDurations;
+  private long firstMinute = -1;
+
+  public AzureDemandHistory() {
+    this(DAY_MINUTES + 2 * MAX_WINDOW_MINUTES);
+  }
+
+  AzureDemandHistory(int size) {
+    this.size = size;
+    minutes = new long[size];
+    arrivals = new int[size];
+    starts = new int[size];
+    cloudStarts = new int[size];
+    cloudFinishes = new int[size];
+    cloudDurations = new long[size];
+    Arrays.fill(minutes, -1);
+  }
+
+  public synchronized void recordArrival(long time) {
+    int bucket = bucket(time);
+    if (bucket >= 0) arrivals[bucket]++;
+  }
+
+  /* Records a started build, onCloudAgent tells whether it runs on an agent of the profile
+   */
+  public synchronized void recordStart(long time, boolean onCloudAgent) {
+    int bucket = bucket(time);
+    if (bucket < 0) return;
+    starts[bucket]++;
+    if (onCloudAgent) cloudStarts[bucket]++;
+  }
+
+  /* Records a finished build that ran on an agent of the profile
+   */
+  public synchronized void recordCloudFinish(long time, long duration) {
+    int bucket = bucket(time);
+    if (bucket < 0) return;
+    cloudFinishes[bucket]++;
+    cloudDurations[bucket] += duration;
+  }
+
+  /* Returns the number of builds queued from (inclusive) to (exclusive) the given times
+   */
+  public synchronized int getArrivals(long from, long to) {
+    int result = 0;
+    for (long minute = from / MINUTE; minute < to / MINUTE; minute++) {
+      int index = (int)(minute % size);
+      if (minutes[index] == minute) result += arrivals[index];
+    }
+    return result;
+  }
+
+  /* Returns the share of started builds that ran on agents of the profile, 1 if no build has started yet
+   */
+  public synchronized double getCloudShare() {
+    long all = 0;
+    long cloud = 0;
+    for (int i = 0; i < size; i++) {
+      all += starts[i];
+      cloud += cloudStarts[i];
+    }
+    return all == 0 ? 1 : (double)cloud / all;
+  }
+
+  /* Returns the average duration of builds on agents of the profile, 0 if none is known
+   */
+  public synchronized long getAverageCloudDuration() {
+    long count = 0;
+    long total = 0;
+    for (int i = 0; i < size; i++) {
+      count += cloudFinishes[i];
+      total += cloudDurations[i];
+    }
+    return count == 0 ? 0 : total / count;
+  }
+
+  /* Returns the number of builds expected to be queued within the window starting at now
+   */
+  public synchronized double forecastArrivals(long now, long window) {
+    long windowMinutes = Math.min(MAX_WINDOW_MINUTES, Math.max(1, (window + MINUTE - 1) / MINUTE));
+    double recent = getArrivals(now - RECENT_MINUTES * MINUTE, now) * (double)windowMinutes / RECENT_MINUTES;
+    if (firstMinute < 0 || firstMinute > now / MINUTE - DAY_MINUTES) return recent;
+
+    // what happened in this window yesterday anticipates ramps the recent rate can't see yet
+    long dayAgo = now - DAY_MINUTES * MINUTE;
+    double seasonal = getArrivals(dayAgo, dayAgo + windowMinutes * MINUTE);
+    return (recent + seasonal) / 2;
+  }
+
+  private int bucket(long time) {
+    long minute = time / MINUTE;
+    int index = (int)(minute % size);
+    if (minutes[index] == minute) return index;
+    if (minutes[index] > minute) return -1; // older than the history
+
+    minutes[index] = minute;
+    arrivals[index] = 0;
+    starts[index] = 0;
+    cloudStarts[index] = 0;
+    cloudFinishes[index] = 0;
+    cloudDurations[index] = 0;
+    if (firstMinute < 0 || minute < firstMinute) firstMinute = minute;
+    return index;
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AzureImageSettings {
+  private String id;
+  private String name;
+  private List<String> vmNames = new ArrayList<String>();
+  private int maxRunningInstances;
+  private int priority;
+  private String sourceImage;
+  private String location;
+  private String roleSize;
+  private String virtualNetwork;
+  private int maxParallelProvisions;
+  private int warmInstances;
+  private AzureWarmPoolSchedule warmSchedule;
+  private int idleStopMinutes;
+  private int idleDeallocateMinutes;
+
+  public AzureImageSettings(String id, String name) {
+    this.id = id;
+    this.name = name;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public List<String> getVmNames() {
+    return vmNames;
+  }
+
+  /* Maximum number of virtual machines of the image that may be running at the same time, 0 when only limited by the pool size
+   */
+  public int getMaxRunningInstances() {
+    return maxRunningInstances;
+  }
+
+  public void setMaxRunningInstances(int maxRunningInstances) {
+    this.maxRunningInstances = maxRunningInstances;
+  }
+
+  /* Images with a higher priority are offered first
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  public void setPriority(int priority) {
+    this.priority = priority;
+  }
+
+  /* Name of the captured VM image new virtual machines are created from, null when the image reuses existing virtual machines
+   */
+  public String getSourceImage() {
+    return sourceImage;
+  }
+
+  public void setSourceImage(String sourceImage) {
+    this.sourceImage = sourceImage;
+  }
+
+  public boolean isEphemeral() {
+    return sourceImage != null;
+  }
+
+  public String getLocation() {
+    return location;
+  }
+
+  public void setLocation(String location) {
+    this.location = location;
+  }
+
+  public String getRoleSize() {
+    return roleSize;
+  }
+
+  public void setRoleSize(String roleSize) {
+    this.roleSize = roleSize;
+  }
+
+  public String getVirtualNetwork() {
+    return virtualNetwork;
+  }
+
+  public void setVirtualNetwork(String virtualNetwork) {
+    this.virtualNetwork = virtualNetwork;
+  }
+
+  /* Maximum number of virtual machines created at the same time, 0 for the default
+   */
+  public int getMaxParallelProvisions() {
+    return maxParallelProvisions;
+  }
+
+  public void setMaxParallelProvisions(int maxParallelProvisions) {
+    this.maxParallelProvisions = maxParallelProvisions;
+  }
+
+  /* Number of instances kept running ahead of demand when the schedule doesn't say otherwise
+   */
+  public int getWarmInstances() {
+    return warmInstances;
+  }
+
+  public void setWarmInstances(int warmInstances) {
+    this.warmInstances = warmInstances;
+  }
+
+  public AzureWarmPoolSchedule getWarmSchedule() {
+    return warmSchedule;
+  }
+
+  public void setWarmSchedule(AzureWarmPoolSchedule warmSchedule) {
+    this.warmSchedule = warmSchedule;
+  }
+
+  public boolean hasWarmPool() {
+    return warmInstances > 0 || warmSchedule != null;
+  }
+
+  /* Minutes a running instance may stay without builds before it is stopped, 0 to leave stopping to TeamCity
+   */
+  public int getIdleStopMinutes() {
+    return idleStopMinutes;
+  }
+
+  public void setIdleStopMinutes(int idleStopMinutes) {
+    this.idleStopMinutes = idleStopMinutes;
+  }
+
+  /* Minutes a stopped instance stays provisioned for a fast restart before it is deallocated, 0 to deallocate right away
+   */
+  public int getIdleDeallocateMinutes() {
+    return idleDeallocateMinutes;
+  }
+
+  public void setIdleDeallocateMinutes(int idleDeallocateMinutes) {
+    this.idleDeallocateMinutes = idleDeallocateMinutes;
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import java.util.*;
+
+/* Reads the image definitions of a cloud profile from the agent VM list. A line in square brackets starts a new image and
+ * may be followed by its settings, every other line is the name of a virtual machine of the current image:
+ *
+ *   [linux] name=Linux agents; max=4; priority=10
+ *   linux-agent-1
+ *   linux-agent-2
+ *
+ * Virtual machines listed before the first image header belong to a default image, so a plain list of names still works.
+ * Empty lines and lines starting with # are ignored.
+ *
+ * An image with a source lists no virtual machines, it creates new ones from a captured VM image and deletes them when done:
+ *
+ *   [peak] source=agent-image; location=West Europe; size=Medium; max=20; parallel=5
+ *
+ * Any image can keep instances running ahead of demand, optionally depending on the time of day:
+ *
+ *   [linux] warm=1; warm.schedule=08:00-18:00 4
+ *
+ * Idle instances can be stopped by the plugin, staying provisioned for a while before they are deallocated:
+ *
+ *   [linux] idle.stop=15; idle.deallocate=60
+ */
+public class AzureImageSettingsParser {
+  public static final String DEFAULT_IMAGE_ID = "reusable";
+  public static final String DEFAULT_IMAGE_NAME = "Azure VMs";
+  /* virtual machines of an image with a source are named <image id>-<random suffix>, the name is also the DNS name of their cloud service */
+  public static final int VM_NAME_SUFFIX_LENGTH = 6;
+  private static final int MAX_DNS_NAME_LENGTH = 63;
+  private static final int MAX_SOURCE_IMAGE_ID_LENGTH = MAX_DNS_NAME_LENGTH - VM_NAME_SUFFIX_LENGTH - 1;
+
+  public List<AzureImageSettings> parse(String vmList) throws Exception {
+    Map<String, AzureImageSettings> images = new LinkedHashMap<String, AzureImageSettings>();
+    Set<String> vmNames = new HashSet<String>();
+    AzureImageSettings current = null;
+
+    String[] lines = vmList == null ? new String[0] : vmList.split("\r?\n|\r");
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i].trim();
+      if (line.length() == 0 || line.startsWith("#")) continue;
+
+      if (line.startsWith("[")) {
+        int end = line.indexOf(']');
+        String id = end < 0 ? "" : line.substring(1, end).trim();
+        if (id.length() == 0) {
+          throw new Exception("Invalid image header on line " + (i + 1) + ": " + line);
+        }
+        if (images.containsKey(id)) {
+          throw new Exception("Image " + id + " is defined more than once");
+        }
+
+        current = new AzureImageSettings(id, id);
+        parseSettings(current, line.substring(end + 1), i + 1);
+        images.put(id, current);
+        continue;
+      }
+
+      if (current == null) {
+        current = new AzureImageSettings(DEFAULT_IMAGE_ID, DEFAULT_IMAGE_NAME);
+        images.put(DEFAULT_IMAGE_ID, current);
+      }
+      // agents are matched to their virtual machine by name, so a name can only belong to one image
+      if (!vmNames.add(line.toLowerCase(Locale.ENGLISH))) {
+        throw new Exception("Virtual machine " + line + " is listed more than once");
+      }
+      if (current.isEphemeral()) {
+        throw new Exception("Image " + current.getId() + " creates its virtual machines from " + current.getSourceImage() + ", it can't list " + line);
+      }
+      current.getVmNames().add(line);
+    }
+
+    for (AzureImageSettings image : images.values()) {
+      if (image.isEphemeral()) {
+        if (!image.getId().toLowerCase(Locale.ENGLISH).matches("[a-z][a-z0-9-]*") || image.getId().length() > MAX_SOURCE_IMAGE_ID_LENGTH) {
+          throw new Exception("Image " + image.getId() + " names its virtual machines after its id, which must start with a letter, contain only "
+                  + "letters, digits and hyphens and be at most " + MAX_SOURCE_IMAGE_ID_LENGTH + " characters long");
+        }
+        if (image.getLocation() == null) {
+          throw new Exception("Setting 'location' is required for image " + image.getId());
+        }
+        if (image.getMaxRunningInstances() <= 0) {
+          throw new Exception("Setting 'max' is required for image " + image.getId());
+        }
+      } else if (image.getVmNames().isEmpty()) {
+        throw new Exception("No virtual machines listed for image " + image.getId());
+      }
+    }
+
+    List<AzureImageSettings> result = new ArrayList<AzureImageSettings>(images.values());
+    Collections.sort(result, new Comparator<AzureImageSettings>() {
+      public int compare(AzureImageSettings first, AzureImageSettings second) {
+        return first.getPriority() > second.getPriority() ? -1 : (first.getPriority() == second.getPriority() ? 0 : 1);
+      }
+    });
+    return result;
+  }
+
+  private void parseSettings(AzureImageSettings settings, String text, int lineNumber) throws Exception {
+    for (String setting : text.split(";")) {
+      setting = setting.trim();
+      if (setting.length() == 0) continue;
+
+      int separator = setting.indexOf('=');
+      if (separator < 0) {
+        throw new Exception("Invalid setting '" + setting + "' of image " + settings.getId() + " on line " + lineNumber);
+      }
+      String key = setting.substring(0, separator).trim();
+      String value = setting.substring(separator + 1).trim();
+      applySetting(settings, key, value, lineNumber);
+    }
+  }
+
+  private void applySetting(AzureImageSettings settings, String key, String value, int lineNumber) throws Exception {
+    if ("name".equals(key)) {
+      settings.setName(value);
+    } else if ("max".equals(key)) {
+      settings.setMaxRunningInstances(parseInt(settings, key, value, lineNumber));
+    } else if ("priority".equals(key)) {
+      settings.setPriority(parseInt(settings, key, value, lineNumber));
+    } else if ("source".equals(key)) {
+      settings.setSourceImage(value);
+    } else if ("location".equals(key)) {
+      settings.setLocation(value);
+    } else if ("size".equals(key)) {
+      settings.setRoleSize(value);
+    } else if ("network".equals(key)) {
+      settings.setVirtualNetwork(value);
+    } else if ("parallel".equals(key)) {
+      settings.setMaxParallelProvisions(parseInt(settings, key, value, lineNumber));
+    } else if ("warm".equals(key)) {
+      settings.setWarmInstances(parseInt(settings, key, value, lineNumber));
+    } else if ("warm.schedule".equals(key)) {
+      settings.setWarmSchedule(AzureWarmPoolSchedule.parse(value));
+    } else if ("idle.stop".equals(key)) {
+      settings.setIdleStopMinutes(parseInt(settings, key, value, lineNumber));
+    } else if ("idle.deallocate".equals(key)) {
+      settings.setIdleDeallocateMinutes(parseInt(settings, key, value, lineNumber));
+    } else {
+      throw new Exception("Unknown setting '" + key + "' of image " + settings.getId() + " on line " + lineNumber);
+    }
+  }
+
+  private static int parseInt(AzureImageSettings settings, String key, String value, int lineNumber) throws Exception {
+    try {
+      return Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      throw new Exception("Setting '" + key + "' of image " + settings.getId() + " on line " + lineNumber + " must be a number: " + value);
+    }
+  }
+}
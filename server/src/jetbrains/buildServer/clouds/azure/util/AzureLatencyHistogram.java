@@ -0,0 +1,80 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Latency distribution in fixed buckets from 50 milliseconds to 30 minutes, cheap enough to update on every call
+ * from any thread. Percentiles are reported as the upper bound of the bucket they fall into.
+ */
+public class AzureLatencyHistogram {
+  private static final long[] BOUNDS = {
+          50, 100, 250, 500,
+          1000, 2500, 5000, 10 * 1000, 30 * 1000,
+          60 * 1000, 2 * 60 * 1000, 5 * 60 * 1000, 10 * 60 * 1000, 20 * 60 * 1000, 30 * 60 * 1000
+  };
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long millis) {
+    int bucket = 0;
+    while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) bucket++;
+    buckets.incrementAndGet(bucket);
+    count.incrementAndGet();
+    total.addAndGet(millis);
+
+    long current;
+    while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+      // retry with the maximum recorded meanwhile
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMean() {
+    long recorded = count.get();
+    return recorded == 0 ? 0 : total.get() / recorded;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  /* Returns the latency below which the given fraction of calls has completed, 0 if nothing was recorded
+   */
+  public long getPercentile(double fraction) {
+    long recorded = 0;
+    for (int i = 0; i < buckets.length(); i++) {
+      recorded += buckets.get(i);
+    }
+    if (recorded == 0) return 0;
+
+    long rank = (long)Math.ceil(fraction * recorded);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) return Math.min(BOUNDS[i], max.get());
+    }
+    return max.get();
+  }
+}
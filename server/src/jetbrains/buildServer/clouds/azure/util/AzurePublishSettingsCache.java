@@ -0,0 +1,111 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/* Keeps parsed publish settings by a digest of their XML, so re-creating a cloud client for an unchanged profile
+ * skips parsing and key material work. Entries expire after a while and the least recently used ones are evicted
+ * once the cache is full.
+ */
+public class AzurePublishSettingsCache {
+  private final AzurePublishSettingsParser parser = new AzurePublishSettingsParser();
+  private final Map<String, CachedSettings> entries;
+  private final long expiration;
+  private long hits = 0;
+  private long misses = 0;
+
+  public AzurePublishSettingsCache(final int maxEntries, long expiration) {
+    this.expiration = expiration;
+    this.entries = new LinkedHashMap<String, CachedSettings>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedSettings> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  public AzurePublishSettings get(String publishSettingsXml) throws Exception {
+    return get(publishSettingsXml, null);
+  }
+
+  /* Returns the settings of the profile containing the subscription, see AzurePublishSettingsParser#parse(String, String)
+   */
+  public AzurePublishSettings get(String publishSettingsXml, String subscriptionId) throws Exception {
+    String key = digest(publishSettingsXml) + "|" + subscriptionId;
+    long now = System.currentTimeMillis();
+
+    synchronized (entries) {
+      CachedSettings cached = entries.get(key);
+      if (cached != null && now - cached.created < expiration) {
+        hits++;
+        return cached.settings;
+      }
+      misses++;
+    }
+
+    AzurePublishSettings settings = parser.parse(publishSettingsXml, subscriptionId);
+    synchronized (entries) {
+      entries.put(key, new CachedSettings(settings, now));
+    }
+    return settings;
+  }
+
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public long getHits() {
+    synchronized (entries) {
+      return hits;
+    }
+  }
+
+  public long getMisses() {
+    synchronized (entries) {
+      return misses;
+    }
+  }
+
+  public int getSize() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  private static String digest(String publishSettingsXml) throws Exception {
+    StringBuilder result = new StringBuilder();
+    for (byte b : MessageDigest.getInstance("SHA-256").digest(publishSettingsXml.getBytes("UTF-8"))) {
+      result.append(String.format("%02x", b));
+    }
+    return result.toString();
+  }
+
+  private static class CachedSettings {
+    private final AzurePublishSettings settings;
+    private final long created;
+
+    private CachedSettings(AzurePublishSettings settings, long created) {
+      this.settings = settings;
+      this.created = created;
+    }
+  }
+}
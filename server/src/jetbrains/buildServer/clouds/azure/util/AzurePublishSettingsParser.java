@@ -16,66 +16,137 @@
 
 package jetbrains.buildServer.clouds.azure.util;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
 import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.IOException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.URL;
 import java.security.KeyStore;
 import java.util.ArrayList;
 import java.util.List;
 
+/* Reads publish settings with a streaming parser: only the selected profile is materialized, the management certificate
+ * of other profiles is never decoded, and reading stops as soon as the requested subscription has been found
+ */
 public class AzurePublishSettingsParser {
+  private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+  public AzurePublishSettings parse(String publishSettingsXml) throws Exception {
+    return parse(publishSettingsXml, null);
+  }
+
+  /* Returns the profile containing the given subscription with only that subscription in it, or the first profile with
+   * all its subscriptions when no subscription is given
+   */
+  public AzurePublishSettings parse(String publishSettingsXml, String subscriptionId) throws Exception {
+    return parse(new InputSource(new StringReader(publishSettingsXml)), subscriptionId, null, null);
+  }
+
   public AzurePublishSettings parse(String publishSettingsXml, OutputStream keyStoreOutputStream, String keystorePwd) throws Exception {
     return parse(new InputSource(new StringReader(publishSettingsXml)), keyStoreOutputStream, keystorePwd);
   }
 
-
   public AzurePublishSettings parse(InputSource publishSettings, OutputStream keyStoreOutputStream, String keystorePwd) throws Exception {
-    Document publishSettingsDocument = createDocumentFromInputSource(publishSettings);
+    return parse(publishSettings, null, keyStoreOutputStream, keystorePwd);
+  }
+
+  private AzurePublishSettings parse(InputSource publishSettings, String subscriptionId, OutputStream keyStoreOutputStream, String keystorePwd) throws Exception {
+    if (publishSettings.getCharacterStream() != null || publishSettings.getByteStream() != null) {
+      return parse(createReader(publishSettings), subscriptionId, keyStoreOutputStream, keystorePwd);
+    }
+    if (publishSettings.getSystemId() == null) {
+      throw new IllegalArgumentException("Publish settings must be given as a character or byte stream or a system id");
+    }
+
+    // read from the system id like a DOM parser would, the reader doesn't close the stream opened for it
+    InputStream stream = new URL(publishSettings.getSystemId()).openStream();
+    try {
+      InputSource source = new InputSource(stream);
+      source.setSystemId(publishSettings.getSystemId());
+      source.setEncoding(publishSettings.getEncoding());
+      return parse(createReader(source), subscriptionId, keyStoreOutputStream, keystorePwd);
+    } finally {
+      stream.close();
+    }
+  }
 
-    // Get the PublishProfile
-    NodeList ndPublishProfile = publishSettingsDocument.getElementsByTagName("PublishProfile");
-    Element publishProfileElement = (Element) ndPublishProfile.item(0);
+  private AzurePublishSettings parse(XMLStreamReader reader, String subscriptionId, OutputStream keyStoreOutputStream, String keystorePwd) throws Exception {
+    try {
+      while (reader.hasNext()) {
+        if (reader.next() != XMLStreamConstants.START_ELEMENT || !"PublishProfile".equals(reader.getLocalName())) continue;
 
-    // Get the PublishMethod
-    String publishMethod = publishProfileElement.getAttribute("PublishMethod");
+        // Get the PublishMethod, management Url and ManagementCertificate of the profile
+        String publishMethod = reader.getAttributeValue(null, "PublishMethod");
+        String managementUrl = reader.getAttributeValue(null, "Url");
+        String certificate = reader.getAttributeValue(null, "ManagementCertificate");
 
-    // Get the management Url
-    String managementUrl = publishProfileElement.getAttribute("Url");
+        // Get subscriptions, newer publish settings carry the url and certificate on the subscription instead
+        List<AzureSubscription> subscriptions = new ArrayList<AzureSubscription>();
+        while (reader.hasNext()) {
+          int event = reader.next();
+          if (event == XMLStreamConstants.END_ELEMENT && "PublishProfile".equals(reader.getLocalName())) break;
+          if (event != XMLStreamConstants.START_ELEMENT || !"Subscription".equals(reader.getLocalName())) continue;
 
-    // Get the management KeyStore
-    KeyStoreUtil keyStoreUtil = new KeyStoreUtil();
-    String certificate = publishProfileElement.getAttribute("ManagementCertificate");
-    KeyStore managementKeyStore = keyStoreUtil.createKeyStorePKCS12(certificate, keyStoreOutputStream, keystorePwd);
-
-    // Get subscriptions
-    List<AzureSubscription> subscriptions = new ArrayList<AzureSubscription>();
-    NodeList ndSubscriptions = publishProfileElement.getElementsByTagName("Subscription");
-    for (int i = 0; i < ndSubscriptions.getLength(); i++) {
-      Element subscriptionElement = (Element) ndSubscriptions.item(i);
-      AzureSubscription subscription = new AzureSubscription(
-              subscriptionElement.getAttribute("Id"), subscriptionElement.getAttribute("Name"));
-      subscriptions.add(subscription);
+          String id = reader.getAttributeValue(null, "Id");
+          if (subscriptionId != null && !subscriptionId.equalsIgnoreCase(id)) continue;
+
+          subscriptions.add(new AzureSubscription(id, reader.getAttributeValue(null, "Name")));
+          String subscriptionUrl = reader.getAttributeValue(null, "ServiceManagementUrl");
+          if (subscriptionUrl != null) managementUrl = subscriptionUrl;
+          String subscriptionCertificate = reader.getAttributeValue(null, "ManagementCertificate");
+          if (subscriptionCertificate != null) certificate = subscriptionCertificate;
+
+          // the requested subscription is found, the rest of the file is not needed
+          if (subscriptionId != null) break;
+        }
+
+        if (subscriptionId != null && subscriptions.isEmpty()) continue;
+        if (certificate == null) {
+          throw new Exception("Publish settings do not contain a management certificate");
+        }
+        return new AzurePublishSettings(publishMethod, managementUrl, createKeyStore(certificate, keyStoreOutputStream, keystorePwd), subscriptions);
+      }
+    } finally {
+      reader.close();
     }
 
-    return new AzurePublishSettings(publishMethod, managementUrl, managementKeyStore, subscriptions);
+    if (subscriptionId != null) {
+      throw new Exception("Subscription " + subscriptionId + " was not found in publish settings");
+    }
+    throw new Exception("Publish settings do not contain a publish profile");
+  }
+
+  private KeyStore createKeyStore(String certificate, OutputStream keyStoreOutputStream, String keystorePwd) throws Exception {
+    // Get the management KeyStore, only written out when a stream is given
+    KeyStoreUtil keyStoreUtil = new KeyStoreUtil();
+    return keyStoreOutputStream == null
+            ? keyStoreUtil.getKeyStorePKCS12(certificate)
+            : keyStoreUtil.createKeyStorePKCS12(certificate, keyStoreOutputStream, keystorePwd);
   }
 
-  protected Document createDocumentFromInputSource(InputSource publishSettings)
-          throws ParserConfigurationException, SAXException, IOException {
-    DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-    DocumentBuilder db = dbf.newDocumentBuilder();
-    Document publishSettingsDocument = db.parse(publishSettings);
-    publishSettingsDocument.getDocumentElement().normalize();
+  protected XMLStreamReader createReader(InputSource publishSettings) throws XMLStreamException {
+    // the factory is only safe to configure once, creating readers is guarded for implementations that share state
+    synchronized (xmlInputFactory) {
+      if (publishSettings.getCharacterStream() != null) {
+        return xmlInputFactory.createXMLStreamReader(publishSettings.getCharacterStream());
+      }
+      if (publishSettings.getEncoding() != null) {
+        return xmlInputFactory.createXMLStreamReader(publishSettings.getByteStream(), publishSettings.getEncoding());
+      }
+      return xmlInputFactory.createXMLStreamReader(publishSettings.getByteStream());
+    }
+  }
 
-    return publishSettingsDocument;
+  private static XMLInputFactory createXmlInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // publish settings never need a DTD, don't resolve anything external
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
   }
-}
\ No newline at end of file
+}
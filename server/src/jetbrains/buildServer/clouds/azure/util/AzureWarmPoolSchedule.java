@@ -0,0 +1,72 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package jetbrains.buildServer.clouds.azure.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/* Number of warm instances by time of day, written as comma separated ranges with the count for each of them:
+ *
+ *   08:00-18:00 4, 18:00-22:00 1
+ *
+ * A range ending before it starts spans midnight. Outside of all ranges the default count of the image applies.
+ */
+public class AzureWarmPoolSchedule {
+  private final List<int[]> ranges = new ArrayList<int[]>();
+
+  public static AzureWarmPoolSchedule parse(String schedule) throws Exception {
+    AzureWarmPoolSchedule result = new AzureWarmPoolSchedule();
+    for (String entry : schedule.split(",")) {
+      entry = entry.trim();
+      if (entry.length() == 0) continue;
+
+      String[] parts = entry.split("\\s+");
+      String[] times = parts[0].split("-");
+      if (parts.length != 2 || times.length != 2) {
+        throw new Exception("Invalid warm pool schedule entry '" + entry + "', expected e.g. 08:00-18:00 4");
+      }
+      try {
+        result.ranges.add(new int[]{parseTime(times[0]), parseTime(times[1]), Integer.parseInt(parts[1])});
+      } catch (NumberFormatException e) {
+        throw new Exception("Invalid warm pool schedule entry '" + entry + "', expected e.g. 08:00-18:00 4");
+      }
+    }
+    return result;
+  }
+
+  /* Returns the count of the first range containing the given minute of the day, or the default count
+   */
+  public int getCount(int minuteOfDay, int defaultCount) {
+    for (int[] range : ranges) {
+      boolean inRange = range[0] <= range[1]
+              ? minuteOfDay >= range[0] && minuteOfDay < range[1]
+              : minuteOfDay >= range[0] || minuteOfDay < range[1];
+      if (inRange) return range[2];
+    }
+    return defaultCount;
+  }
+
+  private static int parseTime(String time) throws Exception {
+    String[] parts = time.trim().split(":");
+    int hours = Integer.parseInt(parts[0]);
+    int minutes = parts.length > 1 ? Integer.parseInt(parts[1]) : 0;
+    if (parts.length > 2 || hours < 0 || hours > 24 || minutes < 0 || minutes > 59) {
+      throw new Exception("Invalid time of day '" + time + "' in warm pool schedule");
+    }
+    return hours * 60 + minutes;
+  }
+}
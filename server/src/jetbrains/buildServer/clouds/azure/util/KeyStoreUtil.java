@@ -19,20 +19,62 @@ package jetbrains.buildServer.clouds.azure.util;
 import com.microsoft.windowsazure.core.utils.Base64;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.security.Security;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class KeyStoreUtil {
+  private static final int MAX_CACHED_KEYSTORES = 32;
+
+  /* Key stores by a hash of the certificate they were created from, so profiles using the same management certificate
+   * share one store and re-creating a cloud client does not redo the PKCS#12 work
+   */
+  private static final Map<String, KeyStore> keyStores = new LinkedHashMap<String, KeyStore>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, KeyStore> eldest) {
+      return size() > MAX_CACHED_KEYSTORES;
+    }
+  };
+
+  static {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
   /* Used to create the PKCS#12 store - important to note that the store is created on the fly so is in fact passwordless -
    * the JSSE fails with masqueraded exceptions so the BC provider is used instead - since the PKCS#12 import structure does
    * not have a password it has to be done this way otherwise BC can be used to load the cert into a keystore in advance and
    * password
    */
   public KeyStore createKeyStorePKCS12(String base64Certificate, OutputStream keyStoreOutputStream, String keystorePwd) throws Exception {
-    Security.addProvider(new BouncyCastleProvider());
+    KeyStore store = getKeyStorePKCS12(base64Certificate);
+
+    // we need to a create a physical keystore as well here
+    store.store(keyStoreOutputStream, keystorePwd.toCharArray());
+    keyStoreOutputStream.close();
+    return store;
+  }
+
+  /* Returns the in-memory PKCS#12 store for the certificate, creating it only when the certificate has not been seen before
+   */
+  public KeyStore getKeyStorePKCS12(String base64Certificate) throws Exception {
+    String key = getCacheKey(base64Certificate);
+    synchronized (keyStores) {
+      KeyStore store = keyStores.get(key);
+      if (store != null) return store;
+    }
+
     KeyStore store = KeyStore.getInstance("PKCS12", BouncyCastleProvider.PROVIDER_NAME);
     store.load(null, null);
 
@@ -40,9 +82,73 @@ public class KeyStoreUtil {
     InputStream sslInputStream = new ByteArrayInputStream(Base64.decode(base64Certificate));
     store.load(sslInputStream, "".toCharArray());
 
-    // we need to a create a physical keystore as well here
-    store.store(keyStoreOutputStream, keystorePwd.toCharArray());
-    keyStoreOutputStream.close();
+    synchronized (keyStores) {
+      keyStores.put(key, store);
+    }
     return store;
   }
+
+  /* Hashes the certificate through a small buffer, base64 is plain ASCII so encoding a copy of the whole string is not
+   * needed - the string itself comes straight from the parser, StAX has no way to hand out attribute characters
+   */
+  private static String getCacheKey(String base64Certificate) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    byte[] buffer = new byte[1024];
+    for (int start = 0; start < base64Certificate.length(); start += buffer.length) {
+      int count = Math.min(buffer.length, base64Certificate.length() - start);
+      for (int i = 0; i < count; i++) {
+        char c = base64Certificate.charAt(start + i);
+        if (c > 0x7f) {
+          throw new IllegalArgumentException("Management certificate is not base64 encoded");
+        }
+        buffer[i] = (byte) c;
+      }
+      digest.update(buffer, 0, count);
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /* Creates an SSL context that authenticates with the key in the store, without writing the store to disk
+   */
+  public SSLContext createSSLContext(KeyStore store) throws Exception {
+    KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+    keyManagerFactory.init(store, "".toCharArray());
+
+    SSLContext context = SSLContext.getInstance("TLS");
+    context.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
+    return context;
+  }
+
+  /* Computes a SHA-1 fingerprint over all certificates in the store, so callers can tell whether the management
+   * certificate behind a store has changed without keeping the raw certificate around
+   */
+  public String getCertificateFingerprint(KeyStore store) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-1");
+    Enumeration<String> aliases = store.aliases();
+    while (aliases.hasMoreElements()) {
+      Certificate certificate = store.getCertificate(aliases.nextElement());
+      if (certificate != null) {
+        digest.update(certificate.getEncoded());
+      }
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /* Forgets all cached key stores, so the benchmarks can measure creating them
+   */
+  static void clearCache() {
+    synchronized (keyStores) {
+      keyStores.clear();
+    }
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder result = new StringBuilder();
+    for (byte b : bytes) {
+      result.append(String.format("%02x", b));
+    }
+    return result.toString();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.CloudImage;
+import jetbrains.buildServer.clouds.CloudInstance;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.azure.AzureCloudClient;
+import jetbrains.buildServer.clouds.azure.AzureCloudConstants;
+import jetbrains.buildServer.clouds.azure.AzureManagementClientRegistry;
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Drives a cloud client with hundreds of virtual machines simulated by {@link AzureManagementStub} through start and stop storms
+ * and reports throughput and time to running to the TestNG report and the console. Not part of the fast suite, run it with testng-load.xml.
+ * The load is set with system properties: azure.load.vms, azure.load.services, azure.load.threads, azure.load.latency,
+ * azure.load.throttle, azure.load.failure, azure.load.operation and azure.load.boot.
+ */
+public class AzureCloudClientLoadTest extends BaseTestCase {
+  private static final long TIMEOUT = 15 * 60 * 1000;
+
+  private final int vmCount = Integer.getInteger("azure.load.vms", 200);
+  private final int serviceCount = Integer.getInteger("azure.load.services", 20);
+  private final int threads = Integer.getInteger("azure.load.threads", 25);
+
+  private AzureManagementStub stub;
+  private AzureManagementClientRegistry registry;
+  private AzureCloudClient client;
+  private AzureStubAgents agents;
+  private CloudImage image;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    stub = new AzureManagementStub(Long.getLong("azure.load.seed", 42));
+    stub.setLatency(Long.getLong("azure.load.latency", 50), Long.getLong("azure.load.latency", 50));
+    stub.setThrottleRate(Double.parseDouble(System.getProperty("azure.load.throttle", "0.02")));
+    stub.setFailureRate(Double.parseDouble(System.getProperty("azure.load.failure", "0.01")));
+    stub.setOperationDuration(Long.getLong("azure.load.operation", 5000));
+
+    StringBuilder vmNames = new StringBuilder();
+    int vmsPerService = (vmCount + serviceCount - 1) / serviceCount;
+    for (int service = 0; service * vmsPerService < vmCount; service++) {
+      List<String> roles = new ArrayList<String>();
+      for (int vm = service * vmsPerService; vm < Math.min(vmCount, (service + 1) * vmsPerService); vm++) {
+        roles.add(String.format("load-vm-%04d", vm));
+        vmNames.append(String.format("load-vm-%04d", vm)).append("\n");
+      }
+      stub.addDeployment(String.format("load-service-%03d", service), roles, AzureManagementStub.ROLE_STATUS_DEALLOCATED);
+    }
+
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put(AzureCloudConstants.PARAM_NAME_PUBLISHSETTINGS, stub.getPublishSettingsXml());
+    parameters.put(AzureCloudConstants.PARAM_NAME_SUBSCRIPTION, AzureManagementStub.SUBSCRIPTION_ID);
+    parameters.put(AzureCloudConstants.PARAM_NAME_VMNAMES, vmNames.toString());
+    parameters.put(AzureCloudConstants.PARAM_NAME_STATUS_POLL_INTERVAL, "15");
+    registry = new AzureManagementClientRegistry();
+    client = AzureCloudClientTest.createClient(parameters, registry);
+    Assert.assertNull(client.getErrorInfo());
+    image = client.getImages().iterator().next();
+
+    agents = new AzureStubAgents(client, Long.getLong("azure.load.boot", 3000));
+    stub.addListener(agents);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    agents.dispose();
+    client.dispose();
+    registry.dispose();
+    stub.stop();
+  }
+
+  @Test
+  public void StartAndStopStorms() throws Exception {
+    Reporter.log("Load: " + vmCount + " VMs in " + serviceCount + " hosted services, " + threads + " concurrent callers", true);
+
+    // start storm: every VM is requested at once
+    long requestsBefore = stub.getRequestCount();
+    long stormStart = System.currentTimeMillis();
+    Map<CloudInstance, Long> started = startInstances(vmCount, 0, null);
+    Assert.assertEquals(started.size(), vmCount);
+    List<Long> timeToRunning = awaitStatus(started, InstanceStatus.RUNNING);
+    report("Start storm", stormStart, requestsBefore, timeToRunning, "running");
+
+    // stop storm: every VM is released at once
+    requestsBefore = stub.getRequestCount();
+    stormStart = System.currentTimeMillis();
+    Map<CloudInstance, Long> stopped = terminateInstances(started.keySet());
+    List<Long> timeToStopped = awaitStatus(stopped, InstanceStatus.STOPPED);
+    report("Stop storm", stormStart, requestsBefore, timeToStopped, "stopped");
+
+    // mixed storm: every VM is requested again, and every other one is released while it is still starting
+    requestsBefore = stub.getRequestCount();
+    stormStart = System.currentTimeMillis();
+    Map<CloudInstance, Long> released = new ConcurrentHashMap<CloudInstance, Long>();
+    Map<CloudInstance, Long> kept = startInstances(vmCount, 2, released);
+    kept.keySet().removeAll(released.keySet());
+    Assert.assertEquals(released.size(), (vmCount + 1) / 2);
+    List<Long> mixedTimeToRunning = awaitStatus(kept, InstanceStatus.RUNNING);
+    report("Mixed storm", stormStart, requestsBefore, mixedTimeToRunning, "running");
+    awaitStatus(released, InstanceStatus.STOPPED);
+
+    Reporter.log("Stub: " + stub.getRequestCount() + " requests, " + stub.getThrottledCount() + " throttled, " + stub.getFailedCount() + " failed, "
+            + stub.getConflictCount() + " conflicts, " + stub.getRoleOperationCount() + " role operations, " + stub.getFailedOperationCount() + " failed operations", true);
+  }
+
+  /**
+   * Requests the instances from concurrent callers. With a non-zero {@code terminateEvery}, every such instance is terminated
+   * right after its start and recorded in {@code terminated}.
+   *
+   * @return started instances with the time their start was requested
+   */
+  private Map<CloudInstance, Long> startInstances(int count, final int terminateEvery, final Map<CloudInstance, Long> terminated) throws Exception {
+    final Map<CloudInstance, Long> result = new ConcurrentHashMap<CloudInstance, Long>();
+    List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < count; i++) {
+      final boolean terminate = terminateEvery > 0 && i % terminateEvery == 0;
+      calls.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          long requested = System.currentTimeMillis();
+          CloudInstance instance = client.startNewInstance(image, AzureCloudClientTest.createUserData());
+          result.put(instance, requested);
+          if (terminate) {
+            terminated.put(instance, System.currentTimeMillis());
+            client.terminateInstance(instance);
+          }
+          return null;
+        }
+      });
+    }
+    invokeAll(calls);
+    return result;
+  }
+
+  private Map<CloudInstance, Long> terminateInstances(Collection<CloudInstance> instances) throws Exception {
+    final Map<CloudInstance, Long> result = new ConcurrentHashMap<CloudInstance, Long>();
+    List<Callable<Void>> calls = new ArrayList<Callable<Void>>();
+    for (final CloudInstance instance : instances) {
+      calls.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          result.put(instance, System.currentTimeMillis());
+          client.terminateInstance(instance);
+          return null;
+        }
+      });
+    }
+    invokeAll(calls);
+    return result;
+  }
+
+  private void invokeAll(List<Callable<Void>> calls) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      for (Future<Void> future : executor.invokeAll(calls)) {
+        future.get();
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Waits until all instances have reached the status.
+   *
+   * @return times from the request until the status was observed, sorted
+   */
+  private static List<Long> awaitStatus(Map<CloudInstance, Long> requested, InstanceStatus status) throws InterruptedException {
+    Map<CloudInstance, Long> pending = new HashMap<CloudInstance, Long>(requested);
+    List<Long> times = new ArrayList<Long>();
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!pending.isEmpty() && System.currentTimeMillis() < deadline) {
+      long now = System.currentTimeMillis();
+      for (Iterator<Map.Entry<CloudInstance, Long>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+        Map.Entry<CloudInstance, Long> instance = it.next();
+        if (instance.getKey().getStatus() == status) {
+          times.add(now - instance.getValue());
+          it.remove();
+        }
+      }
+      Thread.sleep(100);
+    }
+
+    if (!pending.isEmpty()) {
+      StringBuilder message = new StringBuilder(pending.size() + " instances did not become " + status + ":");
+      for (CloudInstance instance : pending.keySet()) {
+        message.append(" ").append(instance.getInstanceId()).append("=").append(instance.getStatus());
+      }
+      Assert.fail(message.toString());
+    }
+    Collections.sort(times);
+    return times;
+  }
+
+  private void report(String storm, long stormStart, long requestsBefore, List<Long> times, String state) {
+    double seconds = (System.currentTimeMillis() - stormStart) / 1000.0;
+    Reporter.log(String.format("%s: %d VMs %s in %.1f s, %.1f VMs/s, %.1f API requests/s; time to %s p50 %.1f s, p95 %.1f s, max %.1f s",
+            storm, times.size(), state, seconds, times.size() / seconds, (stub.getRequestCount() - requestsBefore) / seconds,
+            state, percentile(times, 0.5) / 1000.0, percentile(times, 0.95) / 1000.0, percentile(times, 1) / 1000.0), true);
+  }
+
+  private static long percentile(List<Long> sorted, double fraction) {
+    if (sorted.isEmpty()) return 0;
+    return sorted.get(Math.min(sorted.size() - 1, (int) Math.ceil(fraction * sorted.size()) - 1));
+  }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.CloudClientParameters;
+import jetbrains.buildServer.clouds.CloudImage;
+import jetbrains.buildServer.clouds.CloudInstance;
+import jetbrains.buildServer.clouds.CloudInstanceUserData;
+import jetbrains.buildServer.clouds.InstanceStatus;
+import jetbrains.buildServer.clouds.azure.AzureCloudClient;
+import jetbrains.buildServer.clouds.azure.AzureCloudImage;
+import jetbrains.buildServer.clouds.azure.AzureCloudInstance;
+import jetbrains.buildServer.clouds.azure.AzureCloudConstants;
+import jetbrains.buildServer.clouds.azure.AzureManagementClientRegistry;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettingsCache;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class AzureCloudClientTest extends BaseTestCase {
+  private static final long TIMEOUT = 60 * 1000;
+
+  private AzureManagementStub stub;
+  private AzureManagementClientRegistry registry;
+  private AzureCloudClient client;
+  private AzureStubAgents agents;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    stub = new AzureManagementStub(42);
+    registry = new AzureManagementClientRegistry();
+    stub.addDeployment("service-1", Arrays.asList("vm-1", "vm-2"), AzureManagementStub.ROLE_STATUS_DEALLOCATED);
+    stub.setOperationDuration(500);
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    if (agents != null) agents.dispose();
+    if (client != null) client.dispose();
+    registry.dispose();
+    stub.stop();
+  }
+
+  @Test
+  public void StartedInstanceRunsOnceItsAgentRegisters() throws Exception {
+    // arrange
+    createClient("vm-1\nvm-2");
+
+    // act
+    CloudInstance instance = client.startNewInstance(getImage(), createUserData());
+    Assert.assertEquals(instance.getStatus(), InstanceStatus.STARTING);
+    waitForStatus(instance, InstanceStatus.RUNNING);
+    String startedStatus = stub.getRoleStatus(instance.getInstanceId());
+    client.terminateInstance(instance);
+    waitForStatus(instance, InstanceStatus.STOPPED);
+
+    // assert
+    Assert.assertEquals(startedStatus, AzureManagementStub.ROLE_STATUS_READY);
+    Assert.assertEquals(stub.getRoleStatus(instance.getInstanceId()), AzureManagementStub.ROLE_STATUS_DEALLOCATED);
+    Assert.assertEquals(stub.getRoleOperationCount(), 2);
+  }
+
+  @Test
+  public void ThrottledAndFailedRequestsAreRetried() throws Exception {
+    // arrange
+    stub.throttleNext(2);
+    stub.failNext(1);
+    createClient("vm-1\nvm-2");
+
+    // act
+    CloudInstance instance = client.startNewInstance(getImage(), createUserData());
+    waitForStatus(instance, InstanceStatus.RUNNING);
+
+    // assert
+    Assert.assertEquals(stub.getThrottledCount(), 2);
+    Assert.assertEquals(stub.getFailedCount(), 1);
+    Assert.assertEquals(stub.getRoleStatus(instance.getInstanceId()), AzureManagementStub.ROLE_STATUS_READY);
+  }
+
+  @Test
+  public void FailedStartPutsInstanceInError() throws Exception {
+    // arrange
+    stub.setOperationFailureRate(1);
+    createClient("vm-1\nvm-2");
+
+    // act
+    CloudInstance instance = client.startNewInstance(getImage(), createUserData());
+    waitForStatus(instance, InstanceStatus.ERROR);
+
+    // assert
+    Assert.assertNotNull(instance.getErrorInfo());
+    Assert.assertEquals(stub.getFailedOperationCount(), 1);
+    Assert.assertEquals(stub.getRoleStatus(instance.getInstanceId()), AzureManagementStub.ROLE_STATUS_DEALLOCATED);
+  }
+
+  @Test
+  public void SweepSkipsFailedServiceAndReportsAzureErrors() throws Exception {
+    // arrange
+    stub.addDeployment("service-2", Collections.singletonList("vm-3"), AzureManagementStub.ROLE_STATUS_DEALLOCATED);
+    stub.breakService("service-2");
+    createClient("vm-1\nvm-2\nvm-3");
+    stub.setRoleStatus("vm-1", "FailedStartingVM");
+
+    // act
+    client.getStatusPoller().run();
+
+    // assert
+    CloudInstance failed = getImage().findInstanceById("vm-1");
+    Assert.assertEquals(failed.getStatus(), InstanceStatus.ERROR);
+    Assert.assertNotNull(failed.getErrorInfo());
+    Assert.assertTrue(failed.getErrorInfo().getMessage().contains("FailedStartingVM"));
+  }
+
+  @Test
+  public void RestartedClientTakesOverTopologySnapshot() throws Exception {
+    // arrange
+    File snapshotFile = File.createTempFile("azure", ".topology");
+    snapshotFile.deleteOnExit();
+    createClient("vm-1\nvm-2", snapshotFile);
+    CloudInstance started = client.startNewInstance(getImage(), createUserData());
+    waitForStatus(started, InstanceStatus.RUNNING);
+    client.getTopologySnapshot().save();
+
+    // act
+    AzureCloudClient restarted = createClient(getParameters("vm-1\nvm-2"), registry, snapshotFile);
+    try {
+      CloudImage image = restarted.getImages().iterator().next();
+      CloudInstance running = image.findInstanceById(started.getInstanceId());
+      CloudInstance stopped = image.findInstanceById(started.getInstanceId().equals("vm-1") ? "vm-2" : "vm-1");
+
+      // assert
+      Assert.assertEquals(running.getStatus(), InstanceStatus.RUNNING);
+      Assert.assertEquals(running.getStartedTime(), started.getStartedTime());
+      Assert.assertEquals(stopped.getStatus(), InstanceStatus.STOPPED);
+      Assert.assertTrue(restarted.canStartNewInstance(image));
+    } finally {
+      restarted.dispose();
+    }
+  }
+
+  @Test
+  public void NextClientTakesOverVmsLeftRunning() throws Exception {
+    // arrange
+    Map<String, String> parameters = getParameters("vm-1\nvm-2");
+    parameters.put(AzureCloudConstants.PARAM_NAME_KEEP_RUNNING, "true");
+    client = createClient(parameters, registry);
+    agents = new AzureStubAgents(client, 200);
+    stub.addListener(agents);
+    CloudInstance started = client.startNewInstance(getImage(), createUserData());
+    waitForStatus(started, InstanceStatus.RUNNING);
+
+    // act
+    client.dispose();
+    client = createClient(parameters, registry);
+    CloudInstance adopted = getImage().findInstanceById(started.getInstanceId());
+    waitForStatus(adopted, InstanceStatus.RUNNING);
+
+    // assert
+    Assert.assertEquals(stub.getRoleStatus(started.getInstanceId()), AzureManagementStub.ROLE_STATUS_READY);
+    Assert.assertEquals(stub.getRoleOperationCount(), 1);
+    Assert.assertTrue(client.canStartNewInstance(getImage()));
+  }
+
+  @Test
+  public void NewInstanceStartedDuringRestartTakesAnotherVm() throws Exception {
+    // arrange
+    createClient("vm-1\nvm-2");
+    CloudInstance restarted = client.startNewInstance(getImage(), createUserData());
+    waitForStatus(restarted, InstanceStatus.RUNNING);
+
+    // act
+    client.restartInstance(restarted);
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    boolean stoppedMeanwhile = false;
+    while (!AzureManagementStub.ROLE_STATUS_STOPPED.equals(stub.getRoleStatus(restarted.getInstanceId()))) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "Virtual machine was not stopped for restart");
+      stoppedMeanwhile |= restarted.getStatus() == InstanceStatus.STOPPED;
+      Thread.sleep(10);
+    }
+    CloudInstance started = client.startNewInstance(getImage(), createUserData());
+    while (restarted.getStatus() != InstanceStatus.RUNNING) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "Instance was not restarted");
+      stoppedMeanwhile |= restarted.getStatus() == InstanceStatus.STOPPED;
+      Thread.sleep(10);
+    }
+    waitForStatus(started, InstanceStatus.RUNNING);
+
+    // assert
+    Assert.assertFalse(stoppedMeanwhile);
+    Assert.assertFalse(started.getInstanceId().equals(restarted.getInstanceId()));
+    Assert.assertFalse(client.canStartNewInstance(getImage()));
+  }
+
+  @Test
+  public void HandedOutWarmInstanceKeepsUserData() throws Exception {
+    // arrange
+    createClient("[linux] warm=1\nvm-1\nvm-2");
+    waitForWarmInstance();
+    CloudInstanceUserData data = createUserData();
+
+    // act
+    AzureCloudInstance handedOut = (AzureCloudInstance)client.startNewInstance(getImage(), data);
+
+    // assert
+    Assert.assertEquals(handedOut.getStatus(), InstanceStatus.RUNNING);
+    Assert.assertEquals(data.getCustomAgentConfigurationParameters().get(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID), handedOut.getAgentInstanceId());
+  }
+
+  @Test
+  public void IdleWarmInstanceIsNotTerminated() throws Exception {
+    // arrange
+    createClient("[linux] warm=1\nvm-1\nvm-2");
+    CloudInstance warm = waitForWarmInstance();
+
+    // act
+    client.terminateInstance(warm);
+
+    // assert
+    Assert.assertEquals(warm.getStatus(), InstanceStatus.RUNNING);
+    Assert.assertEquals(((AzureCloudImage)getImage()).getWarmPool().getSize(), 1);
+    Assert.assertEquals(stub.getRoleStatus(warm.getInstanceId()), AzureManagementStub.ROLE_STATUS_READY);
+  }
+
+  @Test
+  public void DisposeStopsRunningVmsWithOneRequestPerDeployment() throws Exception {
+    // arrange
+    createClient("vm-1\nvm-2");
+    CloudInstance first = client.startNewInstance(getImage(), createUserData());
+    CloudInstance second = client.startNewInstance(getImage(), createUserData());
+    waitForStatus(first, InstanceStatus.RUNNING);
+    waitForStatus(second, InstanceStatus.RUNNING);
+    long operations = stub.getRoleOperationCount();
+
+    // act
+    client.dispose();
+
+    // assert
+    Assert.assertEquals(stub.getRoleOperationCount(), operations + 1);
+    Assert.assertEquals(stub.getRoleStatus("vm-1"), "StoppingVM");
+    Assert.assertEquals(stub.getRoleStatus("vm-2"), "StoppingVM");
+    Assert.assertEquals(first.getStatus(), InstanceStatus.STOPPING);
+    Assert.assertEquals(second.getStatus(), InstanceStatus.STOPPING);
+  }
+
+  private void createClient(String vmNames) {
+    createClient(vmNames, null);
+  }
+
+  private void createClient(String vmNames, File snapshotFile) {
+    client = createClient(getParameters(vmNames), registry, snapshotFile);
+    Assert.assertNull(client.getErrorInfo());
+    agents = new AzureStubAgents(client, 200);
+    stub.addListener(agents);
+  }
+
+  private Map<String, String> getParameters(String vmNames) {
+    Map<String, String> parameters = new HashMap<String, String>();
+    parameters.put(AzureCloudConstants.PARAM_NAME_PUBLISHSETTINGS, stub.getPublishSettingsXml());
+    parameters.put(AzureCloudConstants.PARAM_NAME_SUBSCRIPTION, AzureManagementStub.SUBSCRIPTION_ID);
+    parameters.put(AzureCloudConstants.PARAM_NAME_VMNAMES, vmNames);
+    return parameters;
+  }
+
+  private CloudImage getImage() {
+    return client.getImages().iterator().next();
+  }
+
+  static AzureCloudClient createClient(Map<String, String> parameters, AzureManagementClientRegistry registry) {
+    return createClient(parameters, registry, null);
+  }
+
+  static AzureCloudClient createClient(final Map<String, String> parameters, AzureManagementClientRegistry registry, File snapshotFile) {
+    CloudClientParameters clientParameters = new CloudClientParameters() {
+      public String getParameter(String name) {
+        return parameters.get(name);
+      }
+
+      public Map<String, String> getParameters() {
+        return Collections.unmodifiableMap(parameters);
+      }
+
+      public String getProfileDescription() {
+        return "Azure stub";
+      }
+    };
+    return new AzureCloudClient(clientParameters, new AzurePublishSettingsCache(1, 60 * 1000), registry,
+            EventDispatcher.create(BuildServerListener.class), snapshotFile);
+  }
+
+  static CloudInstanceUserData createUserData() {
+    return new CloudInstanceUserData("agent", "token", "http://localhost:8111", null, "profile", "Azure stub", new HashMap<String, String>());
+  }
+
+  private CloudInstance waitForWarmInstance() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (!((AzureCloudImage)getImage()).getWarmPool().hasReadyInstance()) {
+      Assert.assertTrue(System.currentTimeMillis() < deadline, "Warm pool was not filled");
+      Thread.sleep(100);
+    }
+    for (CloudInstance instance : getImage().getInstances()) {
+      if (instance.getStatus() == InstanceStatus.RUNNING) return instance;
+    }
+    throw new AssertionError("No running warm instance");
+  }
+
+  private static void waitForStatus(CloudInstance instance, InstanceStatus status) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT;
+    while (instance.getStatus() != status) {
+      if (System.currentTimeMillis() > deadline) {
+        Assert.fail("Instance " + instance.getInstanceId() + " is " + instance.getStatus() + " instead of " + status + " after " + TIMEOUT + " ms");
+      }
+      Thread.sleep(100);
+    }
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.azure.AzureLifecycleExecutor;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AzureLifecycleExecutorTest extends BaseTestCase {
+  @Test
+  public void OperationsOnSameKeyRunInOrder() throws Exception {
+    // arrange
+    AzureLifecycleExecutor executor = new AzureLifecycleExecutor(4);
+    final List<Integer> executed = Collections.synchronizedList(new ArrayList<Integer>());
+
+    // act
+    for (int i = 0; i < 50; i++) {
+      final int index = i;
+      executor.submit("vm1", "operation " + i, new Runnable() {
+        public void run() {
+          executed.add(index);
+        }
+      });
+    }
+    executor.shutdown(10000);
+
+    // assert
+    Assert.assertEquals(executed.size(), 50);
+    for (int i = 0; i < 50; i++) {
+      Assert.assertEquals(executed.get(i).intValue(), i);
+    }
+    Assert.assertEquals(executor.getQueueDepth(), 0);
+  }
+
+  @Test
+  public void OperationsOnDifferentKeysRunConcurrently() throws Exception {
+    // arrange
+    AzureLifecycleExecutor executor = new AzureLifecycleExecutor(3);
+    final CountDownLatch allStarted = new CountDownLatch(3);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    // act
+    for (int i = 0; i < 3; i++) {
+      executor.submit("vm" + i, "operation " + i, new Runnable() {
+        public void run() {
+          allStarted.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException ignored) {
+          }
+        }
+      });
+    }
+
+    // assert
+    Assert.assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+    release.countDown();
+    executor.shutdown(10000);
+  }
+
+  @Test
+  public void AsyncOperationHoldsNoWorkerUntilDone() throws Exception {
+    // arrange
+    AzureLifecycleExecutor executor = new AzureLifecycleExecutor(1);
+    final List<Runnable> completions = Collections.synchronizedList(new ArrayList<Runnable>());
+    final CountDownLatch secondKeyDone = new CountDownLatch(1);
+    final CountDownLatch sameKeyDone = new CountDownLatch(1);
+
+    // act
+    executor.submit("vm1", "async operation", new AzureLifecycleExecutor.AsyncOperation() {
+      public void start(Runnable done) {
+        completions.add(done);
+      }
+    });
+    executor.submit("vm1", "follow-up operation", new Runnable() {
+      public void run() {
+        sameKeyDone.countDown();
+      }
+    });
+    executor.submit("vm2", "other operation", new Runnable() {
+      public void run() {
+        secondKeyDone.countDown();
+      }
+    });
+
+    // assert
+    Assert.assertTrue(secondKeyDone.await(10, TimeUnit.SECONDS));
+    Assert.assertFalse(sameKeyDone.await(200, TimeUnit.MILLISECONDS));
+    completions.get(0).run();
+    Assert.assertTrue(sameKeyDone.await(10, TimeUnit.SECONDS));
+    executor.shutdown(10000);
+  }
+
+  @Test
+  public void AbandonedOperationReleasesItsKey() throws Exception {
+    // arrange
+    AzureLifecycleExecutor executor = new AzureLifecycleExecutor(2);
+    final CountDownLatch hung = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final CountDownLatch followUpDone = new CountDownLatch(1);
+    executor.submit("vm1", "hung operation", new Runnable() {
+      public void run() {
+        hung.countDown();
+        try {
+          new CountDownLatch(1).await();
+        } catch (InterruptedException e) {
+          interrupted.countDown();
+        }
+      }
+    });
+    executor.submit("vm1", "follow-up operation", new Runnable() {
+      public void run() {
+        followUpDone.countDown();
+      }
+    });
+    Assert.assertTrue(hung.await(10, TimeUnit.SECONDS));
+
+    // act
+    String abandoned = executor.abandon("vm1");
+
+    // assert
+    Assert.assertEquals(abandoned, "hung operation");
+    Assert.assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+    Assert.assertTrue(followUpDone.await(10, TimeUnit.SECONDS));
+    executor.shutdown(10000);
+    Assert.assertNull(executor.abandon("vm1"));
+    Assert.assertEquals(executor.getQueueDepth(), 0);
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import util.AzurePublishSettingsFixture;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the Azure Service Management endpoints the plugin calls: listing and describing hosted services,
+ * reading deployments, starting and shutting down roles and reading the status of operations.
+ * Role operations complete after a configurable time. Every request can be delayed, throttled or failed.
+ */
+public class AzureManagementStub {
+  public static final String SUBSCRIPTION_ID = "abc";
+  public static final String ROLE_STATUS_READY = "ReadyRole";
+  public static final String ROLE_STATUS_STOPPED = "StoppedVM";
+  public static final String ROLE_STATUS_DEALLOCATED = "StoppedDeallocated";
+  private static final String NAMESPACE = "http://schemas.microsoft.com/windowsazure";
+
+  private final HttpServer server;
+  private final ExecutorService requestExecutor = Executors.newCachedThreadPool(new NamedDeamonThreadFactory("azure-stub-request"));
+  private final ScheduledExecutorService operationExecutor = Executors.newSingleThreadScheduledExecutor(new NamedDeamonThreadFactory("azure-stub-operation"));
+  private final Random random;
+  private final Map<String, Deployment> deployments = new LinkedHashMap<String, Deployment>();
+  private final Map<String, Deployment> deploymentsByRole = new HashMap<String, Deployment>();
+  private final Map<String, Operation> operations = new ConcurrentHashMap<String, Operation>();
+  private final List<RoleListener> listeners = new CopyOnWriteArrayList<RoleListener>();
+  private final Set<String> brokenServices = new HashSet<String>();
+
+  private volatile long latency = 0;
+  private volatile long latencyJitter = 0;
+  private volatile double throttleRate = 0;
+  private volatile double failureRate = 0;
+  private volatile double operationFailureRate = 0;
+  private volatile long operationDuration = 1000;
+  private final AtomicInteger throttleNext = new AtomicInteger();
+  private final AtomicInteger failNext = new AtomicInteger();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong throttledRequests = new AtomicLong();
+  private final AtomicLong failedRequests = new AtomicLong();
+  private final AtomicLong conflicts = new AtomicLong();
+  private final AtomicLong roleOperations = new AtomicLong();
+  private final AtomicLong failedOperations = new AtomicLong();
+
+  public AzureManagementStub() throws IOException {
+    this(new Random().nextLong());
+  }
+
+  /**
+   * @param seed seed of the random injection of throttling and failures, to make a run repeatable
+   */
+  public AzureManagementStub(long seed) throws IOException {
+    random = new Random(seed);
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          dispatch(exchange);
+        } catch (Exception e) {
+          sendError(exchange, 500, "InternalError", "Stub failed to handle the request: " + e);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.setExecutor(requestExecutor);
+    server.start();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * @return publish settings of subscription {@link #SUBSCRIPTION_ID} pointing to this stub
+   */
+  public String getPublishSettingsXml() {
+    return AzurePublishSettingsFixture.PUBLISH_SETTINGS_XML.replace("https://management.core.windows.net", getUrl());
+  }
+
+  /**
+   * Adds a hosted service with a single production deployment of virtual machine roles in the given status.
+   */
+  public synchronized void addDeployment(String serviceName, Collection<String> roleNames, String status) {
+    Deployment deployment = new Deployment(serviceName + "-production");
+    for (String roleName : roleNames) {
+      deployment.roles.put(roleName, status);
+      deploymentsByRole.put(roleName.toLowerCase(Locale.ENGLISH), deployment);
+    }
+    deployments.put(serviceName, deployment);
+  }
+
+  public synchronized String getRoleStatus(String roleName) {
+    Deployment deployment = deploymentsByRole.get(roleName.toLowerCase(Locale.ENGLISH));
+    return deployment == null ? null : deployment.roles.get(roleName);
+  }
+
+  /**
+   * Changes the status of a role behind the plugin's back, e.g. as if it was stopped in the portal.
+   */
+  public synchronized void setRoleStatus(String roleName, String status) {
+    deploymentsByRole.get(roleName.toLowerCase(Locale.ENGLISH)).roles.put(roleName, status);
+  }
+
+  /**
+   * Makes every request for the details of the hosted service fail.
+   */
+  public synchronized void breakService(String serviceName) {
+    brokenServices.add(serviceName);
+  }
+
+  public void addListener(RoleListener listener) {
+    listeners.add(listener);
+  }
+
+  public void setLatency(long latency, long jitter) {
+    this.latency = latency;
+    latencyJitter = jitter;
+  }
+
+  /**
+   * @param rate share of requests answered with 429 and Retry-After instead of being handled
+   */
+  public void setThrottleRate(double rate) {
+    throttleRate = rate;
+  }
+
+  /**
+   * @param rate share of requests answered with 500 instead of being handled
+   */
+  public void setFailureRate(double rate) {
+    failureRate = rate;
+  }
+
+  /**
+   * @param rate share of accepted role operations that Azure reports as failed when they complete
+   */
+  public void setOperationFailureRate(double rate) {
+    operationFailureRate = rate;
+  }
+
+  public void setOperationDuration(long duration) {
+    operationDuration = duration;
+  }
+
+  public void throttleNext(int count) {
+    throttleNext.set(count);
+  }
+
+  public void failNext(int count) {
+    failNext.set(count);
+  }
+
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  public long getThrottledCount() {
+    return throttledRequests.get();
+  }
+
+  public long getFailedCount() {
+    return failedRequests.get();
+  }
+
+  public long getConflictCount() {
+    return conflicts.get();
+  }
+
+  public long getRoleOperationCount() {
+    return roleOperations.get();
+  }
+
+  public long getFailedOperationCount() {
+    return failedOperations.get();
+  }
+
+  public void stop() {
+    server.stop(0);
+    requestExecutor.shutdownNow();
+    operationExecutor.shutdownNow();
+  }
+
+  private void dispatch(HttpExchange exchange) throws Exception {
+    requests.incrementAndGet();
+    long delay = latency + (latencyJitter > 0 ? nextLong(latencyJitter) : 0);
+    if (delay > 0) {
+      Thread.sleep(delay);
+    }
+
+    if (decrementIfPositive(throttleNext) || nextDouble() < throttleRate) {
+      throttledRequests.incrementAndGet();
+      exchange.getResponseHeaders().add("Retry-After", "1");
+      sendError(exchange, 429, "TooManyRequests", "The request rate of the subscription has been exceeded");
+      return;
+    }
+    if (decrementIfPositive(failNext) || nextDouble() < failureRate) {
+      failedRequests.incrementAndGet();
+      sendError(exchange, 500, "InternalError", "The server encountered an internal error");
+      return;
+    }
+
+    List<String> path = new ArrayList<String>();
+    for (String segment : exchange.getRequestURI().getPath().split("/")) {
+      if (segment.length() > 0) path.add(segment);
+    }
+    if (path.isEmpty() || !SUBSCRIPTION_ID.equals(path.get(0))) {
+      sendError(exchange, 403, "ForbiddenError", "The server failed to authenticate the request");
+      return;
+    }
+
+    String method = exchange.getRequestMethod();
+    if (method.equals("GET") && path.size() == 3 && path.get(1).equals("operations")) {
+      getOperationStatus(exchange, path.get(2));
+    } else if (path.size() >= 3 && path.get(1).equals("services") && path.get(2).equals("hostedservices")) {
+      if (method.equals("GET") && path.size() == 3) {
+        listHostedServices(exchange);
+      } else if (method.equals("GET") && path.size() == 4) {
+        getHostedService(exchange, path.get(3));
+      } else if (method.equals("GET") && path.size() == 6 && path.get(4).equals("deployments")) {
+        getDeployment(exchange, path.get(3), path.get(5));
+      } else if (method.equals("POST") && path.size() == 8 && path.get(6).equalsIgnoreCase("Roles") && path.get(7).equalsIgnoreCase("Operations")) {
+        startRoleOperation(exchange, path.get(3), path.get(5));
+      } else {
+        sendError(exchange, 404, "ResourceNotFound", "Unknown resource " + exchange.getRequestURI());
+      }
+    } else {
+      sendError(exchange, 404, "ResourceNotFound", "Unknown resource " + exchange.getRequestURI());
+    }
+  }
+
+  private void listHostedServices(HttpExchange exchange) throws IOException {
+    StringBuilder xml = new StringBuilder("<HostedServices xmlns=\"" + NAMESPACE + "\">");
+    synchronized (this) {
+      for (String serviceName : deployments.keySet()) {
+        xml.append("<HostedService><Url>").append(getUrl()).append("/").append(SUBSCRIPTION_ID).append("/services/hostedservices/").append(serviceName)
+                .append("</Url><ServiceName>").append(serviceName).append("</ServiceName></HostedService>");
+      }
+    }
+    send(exchange, 200, xml.append("</HostedServices>").toString());
+  }
+
+  private void getHostedService(HttpExchange exchange, String serviceName) throws IOException {
+    String deploymentXml;
+    synchronized (this) {
+      Deployment deployment = deployments.get(serviceName);
+      if (deployment == null) {
+        sendError(exchange, 404, "ResourceNotFound", "The hosted service " + serviceName + " does not exist");
+        return;
+      }
+      if (brokenServices.contains(serviceName)) {
+        sendError(exchange, 400, "BadRequest", "The hosted service " + serviceName + " cannot be read");
+        return;
+      }
+      deploymentXml = deployment.toXml();
+    }
+    send(exchange, 200, "<HostedService xmlns=\"" + NAMESPACE + "\"><ServiceName>" + serviceName + "</ServiceName>"
+            + "<Deployments>" + deploymentXml + "</Deployments></HostedService>");
+  }
+
+  private void getDeployment(HttpExchange exchange, String serviceName, String deploymentName) throws IOException {
+    String deploymentXml;
+    synchronized (this) {
+      Deployment deployment = deployments.get(serviceName);
+      if (deployment == null || !deployment.name.equals(deploymentName)) {
+        sendError(exchange, 404, "ResourceNotFound", "The deployment " + deploymentName + " does not exist");
+        return;
+      }
+      deploymentXml = deployment.toXml();
+    }
+    send(exchange, 200, deploymentXml.replaceFirst("<Deployment>", "<Deployment xmlns=\"" + NAMESPACE + "\">"));
+  }
+
+  private void startRoleOperation(HttpExchange exchange, String serviceName, String deploymentName) throws Exception {
+    Document request = parse(exchange.getRequestBody());
+    Element root = request.getDocumentElement();
+    boolean start = root.getLocalName().equals("StartRolesOperation");
+    String postShutdownAction = getText(root, "PostShutdownAction");
+    List<String> roleNames = new ArrayList<String>();
+    NodeList names = root.getElementsByTagNameNS(NAMESPACE, "Name");
+    for (int i = 0; i < names.getLength(); i++) {
+      roleNames.add(names.item(i).getTextContent());
+    }
+
+    final Operation operation;
+    synchronized (this) {
+      final Deployment deployment = deployments.get(serviceName);
+      if (deployment == null || !deployment.name.equals(deploymentName)) {
+        sendError(exchange, 404, "ResourceNotFound", "The deployment " + deploymentName + " does not exist");
+        return;
+      }
+      for (String roleName : roleNames) {
+        if (!deployment.roles.containsKey(roleName)) {
+          sendError(exchange, 400, "BadRequest", "The role " + roleName + " does not exist in deployment " + deploymentName);
+          return;
+        }
+      }
+      if (deployment.busy) {
+        conflicts.incrementAndGet();
+        sendError(exchange, 409, "ConflictError", "Windows Azure is currently performing an operation on this deployment that requires exclusive access");
+        return;
+      }
+
+      deployment.busy = true;
+      Map<String, String> previous = new HashMap<String, String>();
+      for (String roleName : roleNames) {
+        previous.put(roleName, deployment.roles.put(roleName, start ? "StartingVM" : "StoppingVM"));
+      }
+      String target = start ? ROLE_STATUS_READY : "Stopped".equalsIgnoreCase(postShutdownAction) ? ROLE_STATUS_STOPPED : ROLE_STATUS_DEALLOCATED;
+      operation = new Operation(UUID.randomUUID().toString().replace("-", ""), deployment, previous, target);
+      operations.put(operation.id, operation);
+      roleOperations.incrementAndGet();
+    }
+
+    operationExecutor.schedule(new Runnable() {
+      public void run() {
+        complete(operation, nextDouble() >= operationFailureRate);
+      }
+    }, operationDuration, TimeUnit.MILLISECONDS);
+
+    exchange.getResponseHeaders().add("x-ms-request-id", operation.id);
+    exchange.sendResponseHeaders(202, -1);
+  }
+
+  private void complete(Operation operation, boolean succeeded) {
+    synchronized (this) {
+      for (Map.Entry<String, String> role : operation.previous.entrySet()) {
+        operation.deployment.roles.put(role.getKey(), succeeded ? operation.target : role.getValue());
+      }
+      operation.deployment.busy = false;
+      operation.status = succeeded ? "Succeeded" : "Failed";
+    }
+    if (!succeeded) {
+      failedOperations.incrementAndGet();
+      return;
+    }
+
+    for (String roleName : operation.previous.keySet()) {
+      for (RoleListener listener : listeners) {
+        if (operation.target.equals(ROLE_STATUS_READY)) {
+          listener.roleStarted(roleName);
+        } else {
+          listener.roleStopped(roleName);
+        }
+      }
+    }
+  }
+
+  private void getOperationStatus(HttpExchange exchange, String requestId) throws IOException {
+    Operation operation = operations.get(requestId);
+    if (operation == null) {
+      sendError(exchange, 404, "ResourceNotFound", "The operation " + requestId + " does not exist");
+      return;
+    }
+
+    String status = operation.status;
+    StringBuilder xml = new StringBuilder("<Operation xmlns=\"" + NAMESPACE + "\"><ID>").append(requestId).append("</ID><Status>").append(status).append("</Status>");
+    if (status.equals("Succeeded")) {
+      xml.append("<HttpStatusCode>200</HttpStatusCode>");
+    } else if (status.equals("Failed")) {
+      xml.append("<HttpStatusCode>500</HttpStatusCode><Error><Code>InternalError</Code><Message>The role operation failed</Message></Error>");
+    }
+    send(exchange, 200, xml.append("</Operation>").toString());
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String code, String message) throws IOException {
+    send(exchange, status, "<Error xmlns=\"" + NAMESPACE + "\"><Code>" + code + "</Code><Message>" + message + "</Message></Error>");
+  }
+
+  private static void send(HttpExchange exchange, int status, String xml) throws IOException {
+    byte[] body = xml.getBytes("UTF-8");
+    exchange.getResponseHeaders().add("Content-Type", "application/xml; charset=utf-8");
+    exchange.getResponseHeaders().add("x-ms-request-id", UUID.randomUUID().toString().replace("-", ""));
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+
+  private static Document parse(InputStream in) throws Exception {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    return factory.newDocumentBuilder().parse(in);
+  }
+
+  private static String getText(Element root, String name) {
+    NodeList nodes = root.getElementsByTagNameNS(NAMESPACE, name);
+    return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+  }
+
+  private static boolean decrementIfPositive(AtomicInteger counter) {
+    while (true) {
+      int value = counter.get();
+      if (value <= 0) return false;
+      if (counter.compareAndSet(value, value - 1)) return true;
+    }
+  }
+
+  private double nextDouble() {
+    synchronized (random) {
+      return random.nextDouble();
+    }
+  }
+
+  private long nextLong(long bound) {
+    synchronized (random) {
+      return (long) (random.nextDouble() * bound);
+    }
+  }
+
+  /**
+   * Notified when a role operation has brought a role to its target status.
+   */
+  public interface RoleListener {
+    void roleStarted(String roleName);
+
+    void roleStopped(String roleName);
+  }
+
+  private static class Deployment {
+    private final String name;
+    private final Map<String, String> roles = new LinkedHashMap<String, String>();
+    private boolean busy;
+
+    private Deployment(String name) {
+      this.name = name;
+    }
+
+    private String toXml() {
+      StringBuilder xml = new StringBuilder("<Deployment><Name>").append(name).append("</Name><DeploymentSlot>Production</DeploymentSlot>")
+              .append("<Status>Running</Status><RoleInstanceList>");
+      for (Map.Entry<String, String> role : roles.entrySet()) {
+        xml.append("<RoleInstance><RoleName>").append(role.getKey()).append("</RoleName><InstanceName>").append(role.getKey())
+                .append("</InstanceName><InstanceStatus>").append(role.getValue()).append("</InstanceStatus></RoleInstance>");
+      }
+      xml.append("</RoleInstanceList><RoleList>");
+      for (String roleName : roles.keySet()) {
+        xml.append("<Role><RoleName>").append(roleName).append("</RoleName><RoleType>PersistentVMRole</RoleType></Role>");
+      }
+      return xml.append("</RoleList></Deployment>").toString();
+    }
+  }
+
+  private static class Operation {
+    private final String id;
+    private final Deployment deployment;
+    private final Map<String, String> previous;
+    private final String target;
+    private volatile String status = "InProgress";
+
+    private Operation(String id, Deployment deployment, Map<String, String> previous, String target) {
+      this.id = id;
+      this.deployment = deployment;
+      this.previous = previous;
+      this.target = target;
+    }
+  }
+}
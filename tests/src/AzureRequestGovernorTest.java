@@ -0,0 +1,159 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.microsoft.windowsazure.exception.ServiceException;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.azure.AzureRequestGovernor;
+import jetbrains.buildServer.util.FuncThrow;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AzureRequestGovernorTest extends BaseTestCase {
+  @Test
+  public void ThrottledCallIsRetried() throws Exception {
+    // arrange
+    AzureRequestGovernor governor = new AzureRequestGovernor("subscription", 1000, 10, 3, 1, 5, 60000);
+    final AtomicInteger attempts = new AtomicInteger();
+
+    // act
+    String result = governor.execute("throttled call", new FuncThrow<String, Exception>() {
+      public String apply() throws Exception {
+        if (attempts.incrementAndGet() < 3) throw createServiceException(429, "TooManyRequests");
+        return "done";
+      }
+    });
+
+    // assert
+    Assert.assertEquals(result, "done");
+    Assert.assertEquals(attempts.get(), 3);
+    Assert.assertEquals(governor.getThrottledCalls(), 2);
+    Assert.assertEquals(governor.getRetriedCalls(), 2);
+    Assert.assertFalse(governor.isCircuitOpen());
+    governor.dispose();
+  }
+
+  @Test
+  public void RejectedCallIsNotRetried() throws Exception {
+    // arrange
+    AzureRequestGovernor governor = new AzureRequestGovernor("subscription", 1000, 10, 3, 1, 5, 60000);
+    final AtomicInteger attempts = new AtomicInteger();
+
+    // act
+    try {
+      governor.execute("rejected call", new FuncThrow<String, Exception>() {
+        public String apply() throws Exception {
+          attempts.incrementAndGet();
+          throw createServiceException(404, "ResourceNotFound");
+        }
+      });
+      Assert.fail("Exception expected");
+    } catch (ServiceException e) {
+      Assert.assertEquals(e.getHttpStatusCode(), 404);
+    }
+
+    // assert
+    Assert.assertEquals(attempts.get(), 1);
+    Assert.assertEquals(governor.getRetriedCalls(), 0);
+    governor.dispose();
+  }
+
+  @Test
+  public void ConflictIsNotRetriedWhenFinal() throws Exception {
+    // arrange
+    AzureRequestGovernor governor = new AzureRequestGovernor("subscription", 1000, 10, 3, 1, 5, 60000);
+    final AtomicInteger attempts = new AtomicInteger();
+
+    // act
+    try {
+      governor.execute("create call", new FuncThrow<String, Exception>() {
+        public String apply() throws Exception {
+          attempts.incrementAndGet();
+          throw createServiceException(409, "ConflictError");
+        }
+      }, false);
+      Assert.fail("Exception expected");
+    } catch (ServiceException e) {
+      Assert.assertEquals(e.getHttpStatusCode(), 409);
+    }
+
+    // assert
+    Assert.assertEquals(attempts.get(), 1);
+    Assert.assertEquals(governor.getRetriedCalls(), 0);
+    Assert.assertFalse(governor.isCircuitOpen());
+    governor.dispose();
+  }
+
+  @Test
+  public void CircuitOpensAfterRepeatedFailures() throws Exception {
+    // arrange
+    AzureRequestGovernor governor = new AzureRequestGovernor("subscription", 1000, 10, 0, 1, 2, 60000);
+    final AtomicInteger attempts = new AtomicInteger();
+    FuncThrow<String, Exception> failingCall = new FuncThrow<String, Exception>() {
+      public String apply() throws Exception {
+        attempts.incrementAndGet();
+        throw createServiceException(500, "InternalError");
+      }
+    };
+
+    // act
+    for (int i = 0; i < 3; i++) {
+      try {
+        governor.execute("failing call", failingCall);
+      } catch (Exception ignored) {
+      }
+    }
+
+    // assert
+    Assert.assertTrue(governor.isCircuitOpen());
+    Assert.assertEquals(attempts.get(), 2);
+    Assert.assertEquals(governor.getShortCircuitedCalls(), 1);
+    governor.dispose();
+  }
+
+  @Test
+  public void ThrottlingDoesNotOpenCircuit() throws Exception {
+    // arrange
+    AzureRequestGovernor governor = new AzureRequestGovernor("subscription", 1000, 10, 0, 1, 2, 60000);
+    FuncThrow<String, Exception> throttledCall = new FuncThrow<String, Exception>() {
+      public String apply() throws Exception {
+        throw createServiceException(503, "ServiceUnavailable");
+      }
+    };
+
+    // act
+    for (int i = 0; i < 3; i++) {
+      try {
+        governor.execute("throttled call", throttledCall);
+      } catch (Exception ignored) {
+      }
+    }
+
+    // assert
+    Assert.assertFalse(governor.isCircuitOpen());
+    Assert.assertEquals(governor.getThrottledCalls(), 3);
+    Assert.assertEquals(governor.getShortCircuitedCalls(), 0);
+    governor.dispose();
+  }
+
+  private static ServiceException createServiceException(final int status, final String errorCode) {
+    ServiceException e = new ServiceException(errorCode);
+    e.setHttpStatusCode(status);
+    e.setErrorCode(errorCode);
+    return e;
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import jetbrains.buildServer.clouds.CloudImage;
+import jetbrains.buildServer.clouds.azure.AzureCloudClient;
+import jetbrains.buildServer.clouds.azure.AzureCloudConstants;
+import jetbrains.buildServer.clouds.azure.AzureCloudImage;
+import jetbrains.buildServer.clouds.azure.AzureCloudInstance;
+import jetbrains.buildServer.serverSide.SBuildAgent;
+import jetbrains.buildServer.util.NamedDeamonThreadFactory;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays the build agents of the virtual machines simulated by {@link AzureManagementStub}: an agent registers with the
+ * cloud client some time after its VM has started and unregisters when the VM stops.
+ * All agents are mocked and notified on a single thread.
+ */
+public class AzureStubAgents implements AzureManagementStub.RoleListener {
+  private final Mockery context = new Mockery();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new NamedDeamonThreadFactory("azure-stub-agents"));
+  private final Map<String, SBuildAgent> agents = new HashMap<String, SBuildAgent>();
+  private final AzureCloudClient client;
+  private final long bootTime;
+
+  /**
+   * @param bootTime time from the start of a VM until its agent registers
+   */
+  public AzureStubAgents(AzureCloudClient client, long bootTime) {
+    this.client = client;
+    this.bootTime = bootTime;
+  }
+
+  public void roleStarted(final String roleName) {
+    executor.schedule(new Runnable() {
+      public void run() {
+        SBuildAgent agent = getAgent(roleName);
+        if (agent != null) {
+          client.agentRegistered(agent, -1);
+        }
+      }
+    }, bootTime, TimeUnit.MILLISECONDS);
+  }
+
+  public void roleStopped(final String roleName) {
+    executor.submit(new Runnable() {
+      public void run() {
+        SBuildAgent agent = agents.remove(roleName);
+        if (agent != null) {
+          client.agentUnregistered(agent);
+        }
+      }
+    });
+  }
+
+  public void dispose() {
+    executor.shutdownNow();
+  }
+
+  private SBuildAgent getAgent(String roleName) {
+    SBuildAgent agent = agents.get(roleName);
+    if (agent != null) return agent;
+
+    AzureCloudInstance instance = findInstance(roleName);
+    if (instance == null) return null;
+
+    final SBuildAgent mock = context.mock(SBuildAgent.class, roleName + "-" + System.nanoTime());
+    final Map<String, String> parameters = Collections.singletonMap(AzureCloudConstants.AGENT_PARAM_INSTANCE_ID, instance.getAgentInstanceId());
+    context.checking(new Expectations() {{
+      allowing(mock).getConfigurationParameters();
+      will(returnValue(parameters));
+    }});
+    agents.put(roleName, mock);
+    return mock;
+  }
+
+  private AzureCloudInstance findInstance(String roleName) {
+    for (CloudImage image : client.getImages()) {
+      AzureCloudInstance instance = ((AzureCloudImage) image).findInstanceById(roleName);
+      if (instance != null) return instance;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.azure.util.AzureDemandHistory;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AzureDemandHistoryTest extends BaseTestCase {
+  private static final long MINUTE = 60 * 1000;
+  private static final long DAY = 24 * 60 * MINUTE;
+
+  @Test
+  public void ForecastFollowsRecentRate() throws Exception {
+    // arrange
+    AzureDemandHistory history = new AzureDemandHistory();
+    long now = 100 * DAY;
+    for (int i = 1; i <= 30; i++) {
+      history.recordArrival(now - i * MINUTE);
+      history.recordArrival(now - i * MINUTE);
+    }
+
+    // act
+    double forecast = history.forecastArrivals(now, 5 * MINUTE);
+
+    // assert
+    Assert.assertEquals(forecast, 10.0, 0.001);
+    Assert.assertEquals(history.getArrivals(now - 10 * MINUTE, now), 20);
+  }
+
+  @Test
+  public void ForecastAnticipatesYesterday() throws Exception {
+    // arrange
+    AzureDemandHistory history = new AzureDemandHistory();
+    long now = 100 * DAY;
+    for (int i = 0; i < 20; i++) {
+      history.recordArrival(now - DAY + i % 5 * MINUTE);
+    }
+    history.recordArrival(now - DAY + 10 * MINUTE);
+
+    // act
+    double forecast = history.forecastArrivals(now, 5 * MINUTE);
+
+    // assert
+    Assert.assertEquals(forecast, 10.0, 0.001);
+  }
+
+  @Test
+  public void AverageDurationCountsCloudBuildsOnly() throws Exception {
+    // arrange
+    AzureDemandHistory history = new AzureDemandHistory();
+    long now = 100 * DAY;
+
+    // act
+    history.recordStart(now, true);
+    history.recordStart(now, false);
+    history.recordCloudFinish(now + 3 * MINUTE, 4 * MINUTE);
+    history.recordCloudFinish(now + 5 * MINUTE, 2 * MINUTE);
+
+    // assert
+    Assert.assertEquals(history.getAverageCloudDuration(), 3 * MINUTE);
+    Assert.assertEquals(history.getCloudShare(), 0.5, 0.001);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package util;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettings;
+import jetbrains.buildServer.clouds.azure.util.AzureImageSettingsParser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class AzureImageSettingsParserTest extends BaseTestCase {
+  @Test
+  public void PlainListIsDefaultImage() throws Exception {
+    // arrange
+    AzureImageSettingsParser parser = new AzureImageSettingsParser();
+
+    // act
+    List<AzureImageSettings> images = parser.parse("agent-1\n\n  agent-2  \n");
+
+    // assert
+    Assert.assertEquals(images.size(), 1);
+    Assert.assertEquals(images.get(0).getId(), AzureImageSettingsParser.DEFAULT_IMAGE_ID);
+    Assert.assertEquals(images.get(0).getVmNames(), Arrays.asList("agent-1", "agent-2"));
+    Assert.assertEquals(images.get(0).getMaxRunningInstances(), 0);
+  }
+
+  @Test
+  public void ImagesAreOrderedByPriority() throws Exception {
+    // arrange
+    AzureImageSettingsParser parser = new AzureImageSettingsParser();
+    String vmList = "[windows] name=Windows agents; max=1\n" +
+            "win-1\n" +
+            "# large agents are preferred\n" +
+            "[linux] name=Linux agents; max=2; priority=10\n" +
+            "linux-1\n" +
+            "linux-2\n" +
+            "linux-3\n";
+
+    // act
+    List<AzureImageSettings> images = parser.parse(vmList);
+
+    // assert
+    Assert.assertEquals(images.size(), 2);
+    Assert.assertEquals(images.get(0).getId(), "linux");
+    Assert.assertEquals(images.get(0).getName(), "Linux agents");
+    Assert.assertEquals(images.get(0).getMaxRunningInstances(), 2);
+    Assert.assertEquals(images.get(0).getPriority(), 10);
+    Assert.assertEquals(images.get(0).getVmNames(), Arrays.asList("linux-1", "linux-2", "linux-3"));
+    Assert.assertEquals(images.get(1).getId(), "windows");
+    Assert.assertEquals(images.get(1).getVmNames(), Arrays.asList("win-1"));
+  }
+
+  @Test
+  public void ImageWithSourceIsEphemeral() throws Exception {
+    // arrange
+    AzureImageSettingsParser parser = new AzureImageSettingsParser();
+
+    // act
+    List<AzureImageSettings> images = parser.parse("[peak] source=agent-image; location=West Europe; size=Medium; max=20; parallel=5\n");
+
+    // assert
+    Assert.assertEquals(images.size(), 1);
+    Assert.assertTrue(images.get(0).isEphemeral());
+    Assert.assertEquals(images.get(0).getSourceImage(), "agent-image");
+    Assert.assertEquals(images.get(0).getLocation(), "West Europe");
+    Assert.assertEquals(images.get(0).getRoleSize(), "Medium");
+    Assert.assertEquals(images.get(0).getMaxRunningInstances(), 20);
+    Assert.assertEquals(images.get(0).getMaxParallelProvisions(), 5);
+    Assert.assertTrue(images.get(0).getVmNames().isEmpty());
+  }
+
+  @Test
+  public void WarmScheduleFollowsTimeOfDay() throws Exception {
+    // arrange
+    AzureImageSettingsParser parser = new AzureImageSettingsParser();
+
+    // act
+    AzureImageSettings image = parser.parse("[linux] warm=1; warm.schedule=08:00-18:00 4, 22:00-06:00 0\nagent-1\n").get(0);
+
+    // assert
+    Assert.assertTrue(image.hasWarmPool());
+    Assert.assertEquals(image.getWarmSchedule().getCount(7 * 60 + 59, image.getWarmInstances()), 1);
+    Assert.assertEquals(image.getWarmSchedule().getCount(8 * 60, image.getWarmInstances()), 4);
+    Assert.assertEquals(image.getWarmSchedule().getCount(18 * 60, image.getWarmInstances()), 1);
+    Assert.assertEquals(image.getWarmSchedule().getCount(23 * 60, image.getWarmInstances()), 0);
+    Assert.assertEquals(image.getWarmSchedule().getCount(3 * 60, image.getWarmInstances()), 0);
+  }
+
+  @Test(expectedExceptions = Exception.class)
+  public void FailsForEphemeralImageWithoutLimit() throws Exception {
+    new AzureImageSettingsParser().parse("[peak] source=agent-image; location=West Europe\n");
+  }
+
+  @Test
+  public void FailsForEphemeralImageIdThatIsNoDnsName() throws Exception {
+    AzureImageSettingsParser parser = new AzureImageSettingsParser();
+    for (String id : new String[]{"peak_agents", "1peak", "peak.agents", "peak-agents-with-a-very-long-name-that-exceeds-the-dns-limit"}) {
+      try {
+        parser.parse("[" + id + "] source=agent-image; location=West Europe; max=20\n");
+        Assert.fail("Image id " + id + " accepted");
+      } catch (Exception e) {
+        Assert.assertTrue(e.getMessage().contains(id), e.getMessage());
+      }
+    }
+    Assert.assertEquals(parser.parse("[Peak-2] source=agent-image; location=West Europe; max=20\n").size(), 1);
+  }
+
+  @Test(expectedExceptions = Exception.class)
+  public void FailsForVmInTwoImages() throws Exception {
+    new AzureImageSettingsParser().parse("[a]\nagent-1\n[b]\nAGENT-1\n");
+  }
+
+  @Test(expectedExceptions = Exception.class)
+  public void FailsForUnknownSetting() throws Exception {
+    new AzureImageSettingsParser().parse("[a] colour=blue\nagent-1\n");
+  }
+}
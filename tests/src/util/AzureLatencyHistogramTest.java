@@ -0,0 +1,55 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.azure.util.AzureLatencyHistogram;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AzureLatencyHistogramTest extends BaseTestCase {
+  @Test
+  public void PercentilesFallIntoBuckets() throws Exception {
+    // arrange
+    AzureLatencyHistogram histogram = new AzureLatencyHistogram();
+
+    // act
+    for (int i = 0; i < 90; i++) {
+      histogram.record(80);
+    }
+    for (int i = 0; i < 10; i++) {
+      histogram.record(4000);
+    }
+
+    // assert
+    Assert.assertEquals(histogram.getCount(), 100);
+    Assert.assertEquals(histogram.getMean(), 472);
+    Assert.assertEquals(histogram.getMax(), 4000);
+    Assert.assertEquals(histogram.getPercentile(0.5), 100);
+    Assert.assertEquals(histogram.getPercentile(0.95), 4000);
+  }
+
+  @Test
+  public void EmptyHistogramReportsZero() throws Exception {
+    // arrange
+    AzureLatencyHistogram histogram = new AzureLatencyHistogram();
+
+    // act, assert
+    Assert.assertEquals(histogram.getPercentile(0.99), 0);
+    Assert.assertEquals(histogram.getMean(), 0);
+  }
+}
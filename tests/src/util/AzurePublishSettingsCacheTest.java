@@ -0,0 +1,56 @@
+/*
+ * Copyright 2000-2014 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package util;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettings;
+import jetbrains.buildServer.clouds.azure.util.AzurePublishSettingsCache;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class AzurePublishSettingsCacheTest extends BaseTestCase {
+  @Test
+  public void UnchangedSettingsAreParsedOnce() throws Exception {
+    // arrange
+    AzurePublishSettingsCache cache = new AzurePublishSettingsCache(4, 60000);
+
+    // act
+    AzurePublishSettings first = cache.get(AzurePublishSettingsFixture.PUBLISH_SETTINGS_XML);
+    AzurePublishSettings second = cache.get(AzurePublishSettingsFixture.PUBLISH_SETTINGS_XML);
+
+    // assert
+    Assert.assertSame(second, first);
+    Assert.assertEquals(cache.getHits(), 1);
+    Assert.assertEquals(cache.getMisses(), 1);
+    Assert.assertEquals(cache.getSize(), 1);
+  }
+
+  @Test
+  public void ExpiredSettingsAreParsedAgain() throws Exception {
+    // arrange
+    AzurePublishSettingsCache cache = new AzurePublishSettingsCache(4, 0);
+
+    // act
+    AzurePublishSettings first = cache.get(AzurePublishSettingsFixture.PUBLISH_SETTINGS_XML);
+    AzurePublishSettings second = cache.get(AzurePublishSettingsFixture.PUBLISH_SETTINGS_XML);
+
+    // assert
+    Assert.assertNotSame(second, first);
+    Assert.assertEquals(cache.getHits(), 0);
+    Assert.assertEquals(cache.getMisses(), 2);
+  }
+}